@@ -0,0 +1,102 @@
+package mulan.experiments;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import mulan.classifier.transformation.CombinedTemplates;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the all-labels kernel of CombinedTemplates with a loop deciding one
+ * label at a time, each comparing the whole confidence matrix of an instance
+ * with the templates of one label stored as matrices. Both score the same
+ * random confidences against the same random templates; an operation is a
+ * batch of rows instances.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CombinedTemplatesBenchmark {
+
+    @Param("64")
+    int rows;
+    @Param({"10", "100", "1000"})
+    int labels;
+    @Param("10")
+    int chains;
+
+    private CombinedTemplates templates;
+    private double[][][] positives;
+    private double[][][] negatives;
+    private double[][][] matrices;
+    private double[] columns;
+    private double[][] loopScores;
+    private double[] kernelScores;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(1);
+        int numColumns = labels * chains;
+        // the same templates, flat for the kernel and as matrices for the loop
+        double[] tensor = new double[2 * labels * numColumns];
+        positives = new double[labels][chains][labels];
+        negatives = new double[labels][chains][labels];
+        for (int i = 0; i < labels; i++) {
+            for (int c = 0; c < chains; c++) {
+                for (int j = 0; j < labels; j++) {
+                    positives[i][c][j] = tensor[2 * i * numColumns + j * chains + c] = random.nextDouble();
+                    negatives[i][c][j] = tensor[(2 * i + 1) * numColumns + j * chains + c] = random.nextDouble();
+                }
+            }
+        }
+        templates = new CombinedTemplates(labels, chains, tensor);
+        matrices = new double[rows][chains][labels];
+        columns = new double[rows * numColumns];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < chains; c++) {
+                for (int j = 0; j < labels; j++) {
+                    matrices[r][c][j] = columns[r * numColumns + j * chains + c] = random.nextDouble();
+                }
+            }
+        }
+        loopScores = new double[rows][labels];
+        kernelScores = new double[rows * labels];
+    }
+
+    @Benchmark
+    public double[][] perLabelLoop() {
+        for (int r = 0; r < rows; r++) {
+            for (int i = 0; i < labels; i++) {
+                double dPos = 0;
+                double dNeg = 0;
+                for (int c = 0; c < chains; c++) {
+                    for (int j = 0; j < labels; j++) {
+                        dPos += Math.abs(matrices[r][c][j] - positives[i][c][j]);
+                        dNeg += Math.abs(matrices[r][c][j] - negatives[i][c][j]);
+                    }
+                }
+                loopScores[r][i] = 1 - dPos / (dPos + dNeg);
+            }
+        }
+        return loopScores;
+    }
+
+    @Benchmark
+    public double[] blockedKernel() {
+        templates.scores(columns, rows, kernelScores);
+        return kernelScores;
+    }
+}
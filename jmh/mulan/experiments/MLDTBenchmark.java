@@ -0,0 +1,118 @@
+package mulan.experiments;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import mulan.classifier.MultiLabelLearnerGridSearch;
+import mulan.classifier.MultiLabelOutput;
+import mulan.classifier.transformation.ClassifierChain;
+import mulan.classifier.transformation.EnsembleOfClassifierChainsDT;
+import mulan.classifier.transformation.MLDT;
+import mulan.data.MultiLabelInstances;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.core.Instances;
+
+/**
+ * Benchmarks template building, single instance and batch prediction of MLDT,
+ * and the grid search of EnsembleOfClassifierChainsDT, on a synthetic dataset
+ * generated locally. The chains are trained once per trial on two thirds of
+ * the rows, and the predictions run on the other third: an operation of
+ * predictInstance is one instance, and one of predictBatch the whole third.
+ * The grid search is timed once per fork, as it trains four ensembles.
+ *
+ * Run with the allocation profiler by the jmh profile of the build, e.g.
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="MLDTBenchmark -prof gc -p chains=10,50"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MLDTBenchmark {
+
+    @Param("2000")
+    int rows;
+    @Param("50")
+    int features;
+    @Param("20")
+    int labels;
+    @Param("10")
+    int chains;
+
+    private MultiLabelInstances dataset;
+    private MultiLabelInstances train;
+    private Instances test;
+    private ClassifierChain[] ensemble;
+    private MLDT mldt;
+    private boolean[][] bipartitions;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dataset = SyntheticMultiLabelData.generate(rows, features, labels, 1);
+        train = new MultiLabelInstances(dataset.getDataSet().trainCV(3, 0), dataset.getLabelsMetaData());
+        test = dataset.getDataSet().testCV(3, 0);
+
+        ensemble = new ClassifierChain[chains];
+        Random random = new Random(1);
+        for (int c = 0; c < chains; c++) {
+            int[] chain = new int[labels];
+            for (int j = 0; j < labels; j++) {
+                chain[j] = j;
+            }
+            for (int j = labels - 1; j > 0; j--) {
+                int k = random.nextInt(j + 1);
+                int temp = chain[j];
+                chain[j] = chain[k];
+                chain[k] = temp;
+            }
+            ensemble[c] = new ClassifierChain(new NaiveBayes(), chain);
+            ensemble[c].build(train);
+        }
+        mldt = new MLDT(ensemble, 0.5);
+        mldt.build(train);
+        bipartitions = new boolean[test.numInstances()][labels];
+    }
+
+    @Benchmark
+    public MLDT buildTemplates() throws Exception {
+        MLDT templates = new MLDT(ensemble, 0.5);
+        templates.build(train);
+        return templates;
+    }
+
+    @Benchmark
+    public MultiLabelOutput predictInstance() throws Exception {
+        MultiLabelOutput output = mldt.makePrediction(test.instance(next));
+        next = next + 1 == test.numInstances() ? 0 : next + 1;
+        return output;
+    }
+
+    @Benchmark
+    public boolean[][] predictBatch() throws Exception {
+        mldt.makePredictions(test, bipartitions);
+        return bipartitions;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    public MultiLabelLearnerGridSearch gridSearch() throws Exception {
+        EnsembleOfClassifierChainsDT learner = new EnsembleOfClassifierChainsDT(new NaiveBayes(), chains, true, true, MLDT.PredictionType.INDIVIDUAL);
+        return learner.gridSearch(train, new MultiLabelInstances(test, dataset.getLabelsMetaData()));
+    }
+}
@@ -0,0 +1,160 @@
+package mulan.classifier.transformation;
+
+import java.util.Arrays;
+import java.util.Random;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Samples of the training data of the models of an ensemble, drawn as row
+ * indices into one shared data set, and read through views whose rows share
+ * their values with those of the shared data set. The draws are those of
+ * Instances.randomize followed by Instances.resampleWithWeights or by the
+ * RemovePercentage filter on a copy of the data, without the copy.
+ */
+final class BaggingSample {
+
+    private BaggingSample() {
+    }
+
+    /**
+     * Shuffles the row indices as Instances.randomize shuffles the rows
+     *
+     * @param numRows the number of rows
+     * @param random the random number generator
+     * @return a permutation of the row indices
+     */
+    static int[] shuffle(int numRows, Random random) {
+        int[] rows = new int[numRows];
+        for (int r = 0; r < numRows; r++) {
+            rows[r] = r;
+        }
+        for (int j = numRows - 1; j > 0; j--) {
+            int k = random.nextInt(j + 1);
+            int temp = rows[j];
+            rows[j] = rows[k];
+            rows[k] = temp;
+        }
+        return rows;
+    }
+
+    /**
+     * Draws a sample with replacement, each row being drawn with a probability
+     * proportional to its weight, as Instances.resampleWithWeights does. The
+     * draws are returned in the order of the given rows, and only the first
+     * bagSize are kept.
+     *
+     * @param rows the row indices, usually shuffled
+     * @param dataSet the data set holding the rows and their weights
+     * @param bagSize the size of the sample, at most rows.length
+     * @param random the random number generator
+     * @return the indices of the rows drawn, a row drawn several times being
+     * repeated
+     */
+    static int[] bootstrap(int[] rows, Instances dataSet, int bagSize, Random random) {
+        int n = rows.length;
+        int[] sample = new int[Math.min(bagSize, n)];
+        if (n == 0) {
+            return sample;
+        }
+        double sumOfWeights = 0;
+        for (int row : rows) {
+            double weight = dataSet.instance(row).weight();
+            if (weight < 0) {
+                throw new IllegalArgumentException("Weights must be positive.");
+            }
+            sumOfWeights += weight;
+        }
+        // n sorted uniform points over [0, sumOfWeights]
+        double[] points = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            sum += random.nextDouble();
+            points[k] = sum;
+        }
+        for (int k = 0; k < n; k++) {
+            points[k] = points[k] * sumOfWeights / sum;
+        }
+        points[n - 1] = sumOfWeights;
+
+        int k = 0;
+        double cumulative = 0;
+        for (int l = 0; l < n && k < sample.length; l++) {
+            cumulative += dataSet.instance(rows[l]).weight();
+            while (k < sample.length && points[k] <= cumulative) {
+                sample[k++] = rows[l];
+            }
+        }
+        return k == sample.length ? sample : Arrays.copyOf(sample, k);
+    }
+
+    /**
+     * Keeps the given percentage of the rows, from the start, as the
+     * RemovePercentage filter does with an inverted selection
+     *
+     * @param rows the row indices, usually shuffled
+     * @param percentage the percentage of rows to keep
+     * @return the indices of the rows kept
+     */
+    static int[] subsample(int[] rows, double percentage) {
+        int cutOff = (int) Math.round(rows.length * percentage / 100);
+        int[] sample = new int[cutOff];
+        System.arraycopy(rows, 0, sample, 0, cutOff);
+        return sample;
+    }
+
+    /**
+     * Creates a view of rows of a data set. Each row of the view is a shallow
+     * copy of a row of the data set: Weka copies of dense and sparse instances
+     * share the values of the original until one of them is set, so a row
+     * costs one small object instead of its values. The rows belong to the
+     * view, so they read its header and class index, and rows can be added to
+     * or removed from it without affecting the data set.
+     *
+     * @param dataSet the data set
+     * @param rows the indices of the rows, possibly repeated
+     * @param unitWeights whether the rows must have a weight of 1, as after
+     * Instances.resampleWithWeights, instead of their own
+     * @return the view
+     */
+    static Instances view(Instances dataSet, int[] rows, boolean unitWeights) {
+        return new View(dataSet, rows, unitWeights);
+    }
+
+    /**
+     * Returns whether every row of a data set belongs to it, so that a
+     * learner reading the rows sees the header and class index of the data
+     * set and not those of another one
+     *
+     * @param dataSet the data set
+     * @return whether the dataset of every row is dataSet
+     */
+    static boolean ownsRows(Instances dataSet) {
+        for (int r = 0; r < dataSet.numInstances(); r++) {
+            if (dataSet.instance(r).dataset() != dataSet) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Instances sharing the values of the rows of another data set
+     */
+    private static class View extends Instances {
+
+        private static final long serialVersionUID = 1L;
+
+        View(Instances dataSet, int[] rows, boolean unitWeights) {
+            super(dataSet, rows.length);
+            for (int row : rows) {
+                Instance instance = (Instance) dataSet.instance(row).copy();
+                if (unitWeights) {
+                    instance.setWeight(1);
+                }
+                instance.setDataset(this);
+                m_Instances.add(instance);
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package mulan.classifier.transformation;
+
+import mulan.classifier.MultiLabelLearner;
+import weka.classifiers.Classifier;
+import weka.classifiers.meta.FilteredClassifier;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Evaluates trained classifier chains directly on primitive feature vectors.
+ * <p>
+ * ClassifierChain copies the instance it predicts, and the Remove filter of
+ * every link copies it again before the link's classifier sees it. The engine
+ * instead keeps, for every link, a value array in the link's filtered layout
+ * wrapped once in an Instance, and refills it in place from the feature vector,
+ * which is shared by all the chains, and from the labels predicted so far by
+ * the chain. No objects are allocated per link. The confidences are the same
+ * as those of ClassifierChain.makePrediction.
+ * <p>
+ * The buffers are reused across calls, so an engine must not evaluate the same
+ * chain from two threads at once. Different chains can be evaluated
+ * concurrently.
+ */
+class ChainScoringEngine {
+
+    private final Link[][] links;
+    /**
+     * Predicted value of every label, per chain, in the order of the labels
+     */
+    private final double[][] labelValues;
+
+    /**
+     * One model of a chain: its classifier and the mapping from its filtered
+     * attributes to the attributes of the training data
+     */
+    private static class Link {
+
+        Classifier classifier;
+        Instance instance;
+        double[] values;
+        /**
+         * Attribute of the training data of each filtered attribute, or -1 for
+         * the class
+         */
+        int[] featureSource;
+        /**
+         * Label of each filtered attribute holding a label predicted earlier
+         * in the chain, or -1
+         */
+        int[] labelSource;
+        int label;
+        int positiveValue;
+    }
+
+    /**
+     * Returns whether all the classifiers are classifier chains the engine can
+     * evaluate
+     *
+     * @param classifiers the classifiers of the ensemble
+     * @return whether an engine can be built for them
+     */
+    static boolean supports(MultiLabelLearner[] classifiers) {
+        for (MultiLabelLearner classifier : classifiers) {
+            if (!(classifier instanceof ClassifierChain)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates an engine for trained classifier chains
+     *
+     * @param classifiers the trained chains
+     * @param header the header of the training data
+     * @param labelIndices the attribute index of each label
+     * @throws Exception if the filtered format of a link cannot be read
+     */
+    ChainScoringEngine(MultiLabelLearner[] classifiers, Instances header, int[] labelIndices) throws Exception {
+        int numLabels = labelIndices.length;
+        int[] labelOfAttribute = new int[header.numAttributes()];
+        for (int a = 0; a < labelOfAttribute.length; a++) {
+            labelOfAttribute[a] = -1;
+        }
+        for (int j = 0; j < numLabels; j++) {
+            labelOfAttribute[labelIndices[j]] = j;
+        }
+
+        links = new Link[classifiers.length][];
+        labelValues = new double[classifiers.length][numLabels];
+        for (int c = 0; c < classifiers.length; c++) {
+            FilteredClassifier[] models = ((ClassifierChain) classifiers[c]).ensemble;
+            links[c] = new Link[models.length];
+            for (int k = 0; k < models.length; k++) {
+                Instances format = models[k].getFilter().getOutputFormat();
+                Link link = new Link();
+                link.classifier = models[k].getClassifier();
+                link.values = new double[format.numAttributes()];
+                link.instance = new DenseInstance(1.0, link.values);
+                link.instance.setDataset(format);
+                link.featureSource = new int[format.numAttributes()];
+                link.labelSource = new int[format.numAttributes()];
+                for (int a = 0; a < format.numAttributes(); a++) {
+                    int source = header.attribute(format.attribute(a).name()).index();
+                    boolean isClass = a == format.classIndex();
+                    link.featureSource[a] = isClass ? -1 : source;
+                    link.labelSource[a] = isClass ? -1 : labelOfAttribute[source];
+                    if (isClass) {
+                        link.label = labelOfAttribute[source];
+                    }
+                }
+                link.positiveValue = format.classAttribute().indexOfValue("1");
+                links[c][k] = link;
+            }
+        }
+    }
+
+    /**
+     * Evaluates one chain on a feature vector and writes the confidence of
+     * label j to confidences[offset + j * stride]
+     *
+     * @param chain the index of the chain
+     * @param features the values of all the attributes of the training data;
+     * the values of the labels are ignored
+     * @param confidences the output
+     * @param offset the position of the first label in the output
+     * @param stride the distance between consecutive labels in the output
+     * @throws Exception if a classifier fails to predict
+     */
+    void score(int chain, double[] features, double[] confidences, int offset, int stride) throws Exception {
+        double[] predicted = labelValues[chain];
+        for (Link link : links[chain]) {
+            double[] values = link.values;
+            for (int a = 0; a < values.length; a++) {
+                int label = link.labelSource[a];
+                if (label >= 0) {
+                    values[a] = predicted[label];
+                } else if (link.featureSource[a] >= 0) {
+                    values[a] = features[link.featureSource[a]];
+                } else {
+                    values[a] = Utils.missingValue();
+                }
+            }
+            double[] distribution = link.classifier.distributionForInstance(link.instance);
+            int maxIndex = (distribution[0] > distribution[1]) ? 0 : 1;
+            confidences[offset + link.label * stride] = distribution[link.positiveValue];
+            predicted[link.label] = maxIndex;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package mulan.classifier.transformation;
+
+import java.io.Serializable;
+
+/**
+ * Combined decision templates: the positive template of a label is the mean of
+ * the confidences of all the classifiers for all the labels, over the training
+ * instances where the label is relevant, and the negative template the mean
+ * over the other instances. An instance is then compared with the templates of
+ * each label on its whole confidence matrix, instead of only on the
+ * confidences for that label.
+ * <p>
+ * The templates of all the labels are held in one contiguous tensor, label
+ * after label, the positive template before the negative one, each laid out as
+ * the label-major columns of MLDT: the confidence of classifier c for label j
+ * at j * numClassifiers + c. Deciding every label of a batch streams the
+ * tensor once per block of ROW_BLOCK rows, a tile of COLUMN_BLOCK columns at a
+ * time, so each tile is read from the cache for all the rows of the block,
+ * and four rows are compared with each template value loaded. The distances of
+ * each row are still summed in column order, so the result does not depend on
+ * the blocking.
+ */
+public final class CombinedTemplates implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    /**
+     * Number of rows compared with each tile of the templates
+     */
+    static final int ROW_BLOCK = 8;
+    /**
+     * Number of columns of a tile of the templates
+     */
+    static final int COLUMN_BLOCK = 1024;
+    private final int numLabels;
+    private final int numColumns;
+    private final double[] tensor;
+
+    /**
+     * Creates templates of zeros, to be accumulated
+     *
+     * @param numLabels the number of labels
+     * @param numClassifiers the number of classifiers
+     */
+    public CombinedTemplates(int numLabels, int numClassifiers) {
+        this.numLabels = numLabels;
+        this.numColumns = numLabels * numClassifiers;
+        this.tensor = new double[2 * numLabels * numColumns];
+    }
+
+    /**
+     * Wraps existing templates
+     *
+     * @param numLabels the number of labels
+     * @param numClassifiers the number of classifiers
+     * @param tensor the positive and negative templates of each label, in the
+     * layout described above
+     */
+    public CombinedTemplates(int numLabels, int numClassifiers, double[] tensor) {
+        if (tensor.length != 2 * numLabels * numLabels * numClassifiers) {
+            throw new IllegalArgumentException("Expected " + 2 * numLabels * numLabels * numClassifiers
+                    + " template values, found " + tensor.length);
+        }
+        this.numLabels = numLabels;
+        this.numColumns = numLabels * numClassifiers;
+        this.tensor = tensor;
+    }
+
+    public int getNumLabels() {
+        return numLabels;
+    }
+
+    /**
+     * Adds the confidences of one classifier for one training instance to the
+     * positive or negative template of every label. Calls for different
+     * classifiers touch disjoint cells, so they can run on different threads.
+     */
+    void addColumn(int classifier, int numClassifiers, double[] confidences, boolean[] trueLabels) {
+        for (int i = 0; i < numLabels; i++) {
+            int template = (2 * i + (trueLabels[i] ? 0 : 1)) * numColumns + classifier;
+            for (int j = 0; j < numLabels; j++) {
+                tensor[template + j * numClassifiers] += confidences[j];
+            }
+        }
+    }
+
+    /**
+     * Turns the accumulated sums into means
+     *
+     * @param positives the number of training instances where each label is
+     * relevant
+     * @param negatives the number where it is not
+     */
+    void divide(int[] positives, int[] negatives) {
+        for (int i = 0; i < numLabels; i++) {
+            int positive = 2 * i * numColumns;
+            int negative = positive + numColumns;
+            for (int k = 0; k < numColumns; k++) {
+                tensor[positive + k] /= positives[i];
+                tensor[negative + k] /= negatives[i];
+            }
+        }
+    }
+
+    /**
+     * Moves the positive or negative template of each label towards the
+     * label-major columns of one row, as a running mean
+     *
+     * @param columns the confidences of the row
+     * @param trueLabels the true labels of the row
+     * @param previousWeights the weight of the templates before the row,
+     * positive or negative according to the true label
+     * @param weights the weight of the templates with the row
+     */
+    void update(double[] columns, boolean[] trueLabels, double[] previousWeights, double[] weights) {
+        for (int i = 0; i < numLabels; i++) {
+            int template = (2 * i + (trueLabels[i] ? 0 : 1)) * numColumns;
+            for (int k = 0; k < numColumns; k++) {
+                tensor[template + k] = previousWeights[i] == 0 ? columns[k]
+                        : tensor[template + k] + (columns[k] - tensor[template + k]) / weights[i];
+            }
+        }
+    }
+
+    /**
+     * Computes the template confidence of every label, 1 - dPos / (dPos +
+     * dNeg), for a batch of rows
+     *
+     * @param columns the label-major confidences of the rows, row r from r *
+     * numLabels * numClassifiers
+     * @param numRows the number of rows
+     * @param scores the output, the confidence of label i for row r at r *
+     * numLabels + i
+     */
+    public void scores(double[] columns, int numRows, double[] scores) {
+        double[] positiveDistances = new double[ROW_BLOCK];
+        double[] negativeDistances = new double[ROW_BLOCK];
+        for (int first = 0; first < numRows; first += ROW_BLOCK) {
+            int rows = Math.min(ROW_BLOCK, numRows - first);
+            for (int i = 0; i < numLabels; i++) {
+                int positive = 2 * i * numColumns;
+                int negative = positive + numColumns;
+                for (int r = 0; r < rows; r++) {
+                    positiveDistances[r] = 0;
+                    negativeDistances[r] = 0;
+                }
+                for (int start = 0; start < numColumns; start += COLUMN_BLOCK) {
+                    int end = Math.min(numColumns, start + COLUMN_BLOCK);
+                    int r = 0;
+                    // four rows at a time share each template load, and keep
+                    // eight independent sums in flight
+                    for (; r + 4 <= rows; r += 4) {
+                        int row0 = (first + r) * numColumns;
+                        int row1 = row0 + numColumns;
+                        int row2 = row1 + numColumns;
+                        int row3 = row2 + numColumns;
+                        double dPos0 = positiveDistances[r];
+                        double dPos1 = positiveDistances[r + 1];
+                        double dPos2 = positiveDistances[r + 2];
+                        double dPos3 = positiveDistances[r + 3];
+                        double dNeg0 = negativeDistances[r];
+                        double dNeg1 = negativeDistances[r + 1];
+                        double dNeg2 = negativeDistances[r + 2];
+                        double dNeg3 = negativeDistances[r + 3];
+                        for (int k = start; k < end; k++) {
+                            double p = tensor[positive + k];
+                            double n = tensor[negative + k];
+                            double x0 = columns[row0 + k];
+                            double x1 = columns[row1 + k];
+                            double x2 = columns[row2 + k];
+                            double x3 = columns[row3 + k];
+                            dPos0 += Math.abs(x0 - p);
+                            dNeg0 += Math.abs(x0 - n);
+                            dPos1 += Math.abs(x1 - p);
+                            dNeg1 += Math.abs(x1 - n);
+                            dPos2 += Math.abs(x2 - p);
+                            dNeg2 += Math.abs(x2 - n);
+                            dPos3 += Math.abs(x3 - p);
+                            dNeg3 += Math.abs(x3 - n);
+                        }
+                        positiveDistances[r] = dPos0;
+                        positiveDistances[r + 1] = dPos1;
+                        positiveDistances[r + 2] = dPos2;
+                        positiveDistances[r + 3] = dPos3;
+                        negativeDistances[r] = dNeg0;
+                        negativeDistances[r + 1] = dNeg1;
+                        negativeDistances[r + 2] = dNeg2;
+                        negativeDistances[r + 3] = dNeg3;
+                    }
+                    for (; r < rows; r++) {
+                        int row = (first + r) * numColumns;
+                        double dPos = positiveDistances[r];
+                        double dNeg = negativeDistances[r];
+                        for (int k = start; k < end; k++) {
+                            double confidence = columns[row + k];
+                            dPos += Math.abs(confidence - tensor[positive + k]);
+                            dNeg += Math.abs(confidence - tensor[negative + k]);
+                        }
+                        positiveDistances[r] = dPos;
+                        negativeDistances[r] = dNeg;
+                    }
+                }
+                for (int r = 0; r < rows; r++) {
+                    scores[(first + r) * numLabels + i] = 1 - (positiveDistances[r] / (positiveDistances[r] + negativeDistances[r]));
+                }
+            }
+        }
+    }
+}
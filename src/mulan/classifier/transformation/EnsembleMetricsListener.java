@@ -0,0 +1,134 @@
+package mulan.classifier.transformation;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receives timings of the phases of EnsembleOfClassifierChainsDT and MLDT:
+ * training of each chain, building of the templates, scoring of each chain and
+ * decision of each label at prediction time. Every method does nothing by
+ * default, so a listener overrides only what it records.
+ * <p>
+ * The learners only read the clock when a listener is set, so leaving it unset
+ * costs a null check per phase. Methods may be called concurrently from the
+ * threads of the executors of the learners.
+ */
+public abstract class EnsembleMetricsListener {
+
+    /**
+     * Called when a chain has been trained, from the thread that trained it
+     *
+     * @param chain the index of the chain in the ensemble
+     * @param numInstances the number of instances of its sample
+     * @param nanos the training time
+     * @param allocatedBytes the bytes allocated by the training thread, or -1
+     * if the JVM does not report them
+     */
+    public void chainTrained(int chain, int numInstances, long nanos, long allocatedBytes) {
+    }
+
+    /**
+     * Called when all the chains of an ensemble have been trained
+     *
+     * @param numChains the size of the ensemble
+     * @param nanos the time taken to train all the chains
+     */
+    public void ensembleTrained(int numChains, long nanos) {
+    }
+
+    /**
+     * Called when decision templates have been built
+     *
+     * @param numChains the number of chains the templates are built on
+     * @param numLabels the number of labels
+     * @param numInstances the number of training instances
+     * @param nanos the building time
+     * @param allocatedBytes the bytes allocated by the calling thread and by
+     * the tasks it ran on the executor of the templates, or -1 if the JVM does
+     * not report them
+     */
+    public void templatesBuilt(int numChains, int numLabels, int numInstances, long nanos, long allocatedBytes) {
+    }
+
+    /**
+     * Called when a chain has scored a batch of instances
+     *
+     * @param chain the index of the chain in the ensemble
+     * @param numInstances the number of instances, 1 for a single prediction
+     * @param nanos the scoring time
+     */
+    public void chainScored(int chain, int numInstances, long nanos) {
+    }
+
+    /**
+     * Called when the templates have decided a label of a single instance
+     *
+     * @param label the index of the label
+     * @param nanos the time taken to compare the confidences with the
+     * templates
+     */
+    public void labelDecided(int label, long nanos) {
+    }
+
+    /**
+     * Called when a batch of instances has been predicted
+     *
+     * @param numInstances the number of instances, 1 for a single prediction
+     * @param nanos the prediction time
+     */
+    public void predicted(int numInstances, long nanos) {
+    }
+
+    /**
+     * Returns the bytes allocated so far by the current thread, or -1 if the
+     * JVM does not report them
+     *
+     * @return the allocated bytes
+     */
+    static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread since a reading of
+     * allocatedBytes, or -1 if the JVM does not report them
+     */
+    static long allocatedSince(long allocatedBytes) {
+        return allocatedBytes < 0 ? -1 : allocatedBytes() - allocatedBytes;
+    }
+
+    /**
+     * Wraps a task so that the bytes it allocates on the thread that runs it
+     * are added to a total. A task run on the thread that wrapped it is not
+     * counted, as that thread measures its own allocation.
+     *
+     * @param task the task
+     * @param total the bytes allocated by the tasks so far
+     * @return the wrapped task
+     */
+    static <T> Callable<T> counting(final Callable<T> task, final AtomicLong total) {
+        final Thread caller = Thread.currentThread();
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                if (Thread.currentThread() == caller) {
+                    return task.call();
+                }
+                long allocated = allocatedBytes();
+                try {
+                    return task.call();
+                } finally {
+                    if (allocated >= 0) {
+                        total.addAndGet(allocatedBytes() - allocated);
+                    }
+                }
+            }
+        };
+    }
+}
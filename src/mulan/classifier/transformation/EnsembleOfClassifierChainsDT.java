@@ -17,28 +17,33 @@ package mulan.classifier.transformation;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import mulan.classifier.InvalidDataException;
+import mulan.classifier.MultiLabelLearner;
+import mulan.classifier.ModelInitializationException;
 import mulan.classifier.MultiLabelLearnerGridSearch;
 import mulan.classifier.MultiLabelOutput;
 import static mulan.classifier.meta.RAkELDT.binomial;
+import mulan.data.ColumnarDataset;
 import mulan.data.InvalidDataFormatException;
+import mulan.data.LabelMatrix;
+import mulan.data.LabelsMetaData;
 import mulan.data.MultiLabelInstances;
-import mulan.evaluation.Evaluation;
-import mulan.evaluation.Evaluator;
 import mulan.evaluation.measure.ExampleBasedAccuracy;
-import mulan.evaluation.measure.ExampleBasedFMeasure;
-import mulan.evaluation.measure.Measure;
 import weka.classifiers.Classifier;
 import weka.classifiers.bayes.NaiveBayes;
 import weka.classifiers.trees.J48;
 import weka.core.Instance;
 import weka.core.Instances;
-import weka.filters.Filter;
-import weka.filters.unsupervised.instance.RemovePercentage;
 
 /**
  * <p>
@@ -87,9 +92,46 @@ public class EnsembleOfClassifierChainsDT extends TransformationBasedMultiLabelL
      * when useSamplingWithReplacement is true
      */
     protected int BagSizePercent = 100;
+    /**
+     * Executor used to build the chains of the ensemble in parallel, e.g. a
+     * ForkJoinPool or a fixed thread pool. When null the chains are built
+     * sequentially
+     */
+    protected transient ExecutorService executor;
+    /**
+     * Executor used to evaluate the chains in parallel when building the
+     * decision templates and at prediction time. When null the chains are
+     * evaluated sequentially
+     */
+    protected transient ExecutorService predictionExecutor;
+    /**
+     * Minimum number of chains for the prediction to be computed in parallel
+     */
+    protected int parallelPredictionCutoff = 8;
+    /**
+     * Weight kept by the rows already in a decision template each time
+     * updateTemplates folds a new row into it
+     */
+    protected double templateDecay = 1;
+    /**
+     * Storage of the decision templates
+     */
+    protected MLDT.Precision templatePrecision = MLDT.Precision.DOUBLE;
+    /**
+     * Whether the decision templates are only built for the labels seen in
+     * training
+     */
+    protected boolean sparseLabels = false;
+    /**
+     * Receives the timings of the training and of the predictions, when set
+     */
+    protected transient EnsembleMetricsListener metricsListener;
     private MLDT MultiLabelDecisionTemplate;
     private MLDT.PredictionType predictionType;
-    private double criticalPhiValue;
+    /**
+     * Smallest validation sample on which grid search candidates are discarded
+     */
+    private static final int MIN_HALVING_INSTANCES = 30;
 
     /**
      * Returns the size of each bag sample, as a percentage of the training size
@@ -110,6 +152,176 @@ public class EnsembleOfClassifierChainsDT extends TransformationBasedMultiLabelL
         BagSizePercent = bagSizePercent;
     }
 
+    /**
+     * Returns the executor used to build the chains in parallel
+     *
+     * @return the executor, or null if the chains are built sequentially
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor used to build the chains in parallel. Each chain gets
+     * its own seed, sample and label ordering derived in advance from the
+     * random number generator, so the trained ensemble is the same as the one
+     * built sequentially. The executor is not serialized with the model.
+     *
+     * @param executor the executor, or null to build the chains sequentially
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the executor used to evaluate the chains in parallel at
+     * prediction time
+     *
+     * @return the executor, or null if the chains are evaluated sequentially
+     */
+    public ExecutorService getPredictionExecutor() {
+        return predictionExecutor;
+    }
+
+    /**
+     * Sets the executor used to evaluate the chains in parallel at prediction
+     * time. The executor is not serialized with the model.
+     *
+     * @param predictionExecutor the executor, or null to evaluate the chains
+     * sequentially
+     */
+    public void setPredictionExecutor(ExecutorService predictionExecutor) {
+        this.predictionExecutor = predictionExecutor;
+        if (MultiLabelDecisionTemplate != null) {
+            MultiLabelDecisionTemplate.setExecutor(predictionExecutor);
+        }
+    }
+
+    /**
+     * Returns the minimum number of chains for the prediction to be computed in
+     * parallel
+     *
+     * @return the minimum number of chains
+     */
+    public int getParallelPredictionCutoff() {
+        return parallelPredictionCutoff;
+    }
+
+    /**
+     * Sets the minimum number of chains for the prediction to be computed in
+     * parallel. Smaller ensembles are always evaluated sequentially.
+     *
+     * @param parallelPredictionCutoff the minimum number of chains
+     */
+    public void setParallelPredictionCutoff(int parallelPredictionCutoff) {
+        this.parallelPredictionCutoff = parallelPredictionCutoff;
+        if (MultiLabelDecisionTemplate != null) {
+            MultiLabelDecisionTemplate.setParallelCutoff(parallelPredictionCutoff);
+        }
+    }
+
+    /**
+     * Returns the listener of the timings of the training and the predictions
+     *
+     * @return the listener, or null if nothing is recorded
+     */
+    public EnsembleMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    /**
+     * Sets the listener that receives the training time of each chain, the
+     * building time of the decision templates, and the scoring time of each
+     * chain and decision time of each label at prediction time. It is not
+     * serialized with the model, but is kept by makeCopy.
+     *
+     * @param metricsListener the listener, or null to record nothing
+     */
+    public void setMetricsListener(EnsembleMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        if (MultiLabelDecisionTemplate != null) {
+            MultiLabelDecisionTemplate.setMetricsListener(metricsListener);
+        }
+    }
+
+    /**
+     * Returns the threshold of the template confidence
+     *
+     * @return the threshold
+     */
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Returns the decay of the decision templates under updateTemplates
+     *
+     * @return the decay
+     */
+    public double getTemplateDecay() {
+        return templateDecay;
+    }
+
+    /**
+     * Sets the weight kept by the rows already in a decision template each
+     * time updateTemplates folds a new row into it, so that the templates
+     * follow drift in the data
+     *
+     * @param templateDecay the decay, in (0,1], or 1 for plain running means
+     */
+    public void setTemplateDecay(double templateDecay) {
+        if (MultiLabelDecisionTemplate != null) {
+            MultiLabelDecisionTemplate.setDecay(templateDecay);
+        }
+        this.templateDecay = templateDecay;
+    }
+
+    /**
+     * Returns the storage of the decision templates
+     *
+     * @return the precision of the templates
+     */
+    public MLDT.Precision getTemplatePrecision() {
+        return templatePrecision;
+    }
+
+    /**
+     * Sets the storage of the decision templates, converting those of a
+     * trained model. Reduced precisions shrink the templates at the cost of
+     * rounding; see {@link MLDT#setPrecision(MLDT.Precision)}
+     *
+     * @param templatePrecision the precision of the templates
+     */
+    public void setTemplatePrecision(MLDT.Precision templatePrecision) {
+        if (MultiLabelDecisionTemplate != null) {
+            MultiLabelDecisionTemplate.setPrecision(templatePrecision);
+        }
+        this.templatePrecision = templatePrecision;
+    }
+
+    /**
+     * Returns whether the decision templates are only built for the labels
+     * seen in training
+     *
+     * @return whether the labels are sparse
+     */
+    public boolean getSparseLabels() {
+        return sparseLabels;
+    }
+
+    /**
+     * Sets whether the decision templates are only built for the labels
+     * relevant to at least one training instance, for data with thousands of
+     * labels of which each row has a handful; see
+     * {@link MLDT#setSparseLabels(boolean)}. Takes effect when the model is
+     * built.
+     *
+     * @param sparseLabels whether to skip the labels never seen in training
+     */
+    public void setSparseLabels(boolean sparseLabels) {
+        this.sparseLabels = sparseLabels;
+    }
+
     /**
      * Returns the sampling percentage
      *
@@ -161,26 +373,6 @@ public class EnsembleOfClassifierChainsDT extends TransformationBasedMultiLabelL
         this.predictionType = predictionType;
     }
     
-    /**
-     * 
-     * @param classifier
-     * @param aNumOfModels
-     * @param doUseConfidences
-     * @param doUseSamplingWithReplacement
-     * @param criticalPhiValue 
-     */
-    public EnsembleOfClassifierChainsDT(Classifier classifier, int aNumOfModels,
-            boolean doUseConfidences, boolean doUseSamplingWithReplacement, double criticalPhiValue) {
-        super(classifier);
-        numOfModels = aNumOfModels;
-        useConfidences = doUseConfidences;
-        useSamplingWithReplacement = doUseSamplingWithReplacement;
-        ensemble = new ClassifierChain[aNumOfModels];
-        rand = new Random(1);
-        this.predictionType = MLDT.PredictionType.MASK;
-        this.criticalPhiValue = criticalPhiValue;
-    }
-
     public EnsembleOfClassifierChainsDT(Classifier classifier, int aNumOfModels,
             boolean doUseConfidences, boolean doUseSamplingWithReplacement, MLDT.PredictionType predictionType, double threshold) {
         super(classifier);
@@ -194,51 +386,100 @@ public class EnsembleOfClassifierChainsDT extends TransformationBasedMultiLabelL
     }
 
     @Override
-    public MultiLabelLearnerGridSearch gridSearch(MultiLabelInstances train, MultiLabelInstances validation) throws InvalidDataFormatException {
-        List<Measure> measures = new ArrayList<Measure>(1);
-        measures.add(new ExampleBasedFMeasure());
-        Evaluator eval = new Evaluator();
+    public MultiLabelLearnerGridSearch gridSearch(final MultiLabelInstances train, final MultiLabelInstances validation) throws InvalidDataFormatException {
         double best = 0;
         Classifier[] baseLearners = {new J48(), new NaiveBayes()};
-        List<MLDT.PredictionType> mldtTypes = new ArrayList<>();//{MLDT.PredictionType.INDIVIDUAL, MLDT.PredictionType.COMBINED};
-        boolean[] booleans = {true, false};
+        final List<MLDT.PredictionType> mldtTypes = new ArrayList<>();//{MLDT.PredictionType.INDIVIDUAL, MLDT.PredictionType.COMBINED};
+        final boolean[] booleans = {true, false};
 
         if (predictionType != null) {
             mldtTypes.add(predictionType);
         } else {
+            // the only prediction types whose templates differ
             mldtTypes.add(MLDT.PredictionType.INDIVIDUAL);
             mldtTypes.add(MLDT.PredictionType.COMBINED);
-            mldtTypes.add(MLDT.PredictionType.THRESHOLDING);
-        }
-        double[] confs = {0.3, 0.5, 0.7};
-        if(predictionType == MLDT.PredictionType.MAJT){
-            confs = new double[]{0.5};
-        }
-
-        for (double conf : confs) {
-            for (Classifier baseLearner1 : baseLearners) {
-                for (boolean confidences : booleans) {
-                    for (boolean replacement : booleans) {
-                        for (MLDT.PredictionType mldtType : mldtTypes) {
-                            try {
-                                EnsembleOfClassifierChainsDT ensembleOfClassifierChainsDT = new EnsembleOfClassifierChainsDT(baseLearner1, this.numOfModels, confidences, replacement, mldtType, conf);
-                                ensembleOfClassifierChainsDT.build(train);
-                                Evaluation evaluate = eval.evaluate(ensembleOfClassifierChainsDT, validation, measures);
-                                double mean = evaluate.getValue(0);
-                                if (mean > best) {
-                                    best = mean;
-                                    this.baseClassifier = baseLearner1;
-                                    this.useConfidences = confidences;
-                                    this.useSamplingWithReplacement = replacement;
-                                    this.predictionType = mldtType;
-                                    this.threshold = conf;
-                                }
-                            } catch (Exception ex) {
-                                Logger.getLogger(EnsembleOfClassifierChainsDT.class.getName()).log(Level.SEVERE, null, ex);
-                            }
-                        }
+        }
+        final double[] thresholds = {0.3, 0.5, 0.7};
+
+        // shuffled once, so that every prefix used by successive halving is
+        // a random sample of the validation set
+        final Instances validationData = new Instances(validation.getDataSet());
+        validationData.randomize(new Random(1));
+        int validationSize = validationData.numInstances();
+        LabelMatrix labels = LabelMatrix.decode(validationData, validation.getLabelIndices());
+        boolean[][] trueLabels = new boolean[validationSize][];
+        for (int r = 0; r < validationSize; r++) {
+            trueLabels[r] = labels.row(r, new boolean[validation.getNumLabels()]);
+        }
+
+        // The chains only depend on the base learner and the sampling, so they
+        // are trained once for each of those and shared by every candidate
+        // that differs in the threshold or the prediction type, which do not
+        // change the trained chains. The use of confidences is not searched:
+        // the decision templates always fuse confidences, so its candidates
+        // would only duplicate each other
+        List<Callable<List<GridCandidate>>> trainings = new ArrayList<>();
+        for (int b = 0; b < baseLearners.length; b++) {
+            for (int r = 0; r < booleans.length; r++) {
+                final int learner = b;
+                final int replacement = r;
+                final Classifier baseLearner1 = baseLearners[b];
+                trainings.add(new Callable<List<GridCandidate>>() {
+                    @Override
+                    public List<GridCandidate> call() throws Exception {
+                        return trainCandidates(baseLearner1, learner, replacement, booleans, mldtTypes, thresholds, train, validation, validationData);
+                    }
+                });
+            }
+        }
+
+        List<GridCandidate> candidates = new ArrayList<>();
+        if (executor == null) {
+            for (Callable<List<GridCandidate>> training : trainings) {
+                try {
+                    candidates.addAll(training.call());
+                } catch (Exception ex) {
+                    Logger.getLogger(EnsembleOfClassifierChainsDT.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        } else {
+            try {
+                for (Future<List<GridCandidate>> future : executor.invokeAll(trainings)) {
+                    try {
+                        candidates.addAll(future.get());
+                    } catch (ExecutionException ex) {
+                        Logger.getLogger(EnsembleOfClassifierChainsDT.class.getName()).log(Level.SEVERE, null, ex.getCause());
                     }
                 }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                Logger.getLogger(EnsembleOfClassifierChainsDT.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        Collections.sort(candidates);
+
+        // successive halving: score the candidates on a quarter of the
+        // validation set, keep the better half, and double the sample until
+        // the whole validation set is used
+        for (int rows = validationSize / 4; rows < validationSize && rows >= MIN_HALVING_INSTANCES && candidates.size() > 1; rows *= 2) {
+            for (GridCandidate candidate : candidates) {
+                candidate.evaluate(trueLabels, rows);
+            }
+            List<GridCandidate> ranked = new ArrayList<>(candidates);
+            Collections.sort(ranked, GridCandidate.BY_SCORE);
+            candidates = new ArrayList<>(ranked.subList(0, (ranked.size() + 1) / 2));
+            Collections.sort(candidates);
+        }
+
+        for (GridCandidate candidate : candidates) {
+            double mean = candidate.evaluate(trueLabels, validationSize);
+            if (mean > best) {
+                best = mean;
+                this.baseClassifier = candidate.baseLearner;
+                this.useConfidences = true;
+                this.useSamplingWithReplacement = candidate.useSamplingWithReplacement;
+                this.predictionType = candidate.predictionType;
+                this.threshold = candidate.threshold;
             }
         }
 //        System.out.print(threshold + ";");
@@ -247,59 +488,535 @@ public class EnsembleOfClassifierChainsDT extends TransformationBasedMultiLabelL
         return new EnsembleOfClassifierChainsDT(baseClassifier, this.numOfModels, useConfidences, useSamplingWithReplacement, predictionType, threshold);
     }
 
-    @Override
-    protected void buildInternal(MultiLabelInstances trainingSet) throws Exception {
+    /**
+     * Trains the chains of one base learner and sampling setting, computes
+     * their confidences on the validation set once, and returns the grid
+     * candidates that share them
+     */
+    private List<GridCandidate> trainCandidates(Classifier baseLearner1, int learner, int replacement, boolean[] booleans,
+            List<MLDT.PredictionType> mldtTypes, double[] thresholds, MultiLabelInstances train, MultiLabelInstances validation,
+            Instances validationData) throws Exception {
+        EnsembleOfClassifierChainsDT chains = new EnsembleOfClassifierChainsDT(baseLearner1, this.numOfModels, true, booleans[replacement], mldtTypes.get(0), thresholds[0]);
+        chains.build(train);
+        int validationSize = validationData.numInstances();
+        double[] validationConfidences = chains.MultiLabelDecisionTemplate.computeConfidences(validationData);
 
-        Instances dataSet = new Instances(trainingSet.getDataSet());
+        List<GridCandidate> candidates = new ArrayList<>();
+        for (int t = 0; t < mldtTypes.size(); t++) {
+            MLDT decisionTemplate = t == 0 ? chains.MultiLabelDecisionTemplate
+                    : chains.buildDecisionTemplate(mldtTypes.get(t), thresholds[0], train);
+            // the thresholds only apply to these, so they are computed once
+            double[][] validationScores = new double[validationSize][validation.getNumLabels()];
+            decisionTemplate.makeTemplateConfidences(validationConfidences, validationSize, validationScores);
+            for (int c = 0; c < thresholds.length; c++) {
+                // same order as the nested loops of the exhaustive search,
+                // which kept the first of equally good candidates
+                int order = ((c * 2 + learner) * booleans.length + replacement) * mldtTypes.size() + t;
+                candidates.add(new GridCandidate(order, baseLearner1, booleans[replacement], mldtTypes.get(t),
+                        thresholds[c], validationScores));
+            }
+        }
+        return candidates;
+    }
 
+    @Override
+    protected void buildInternal(final MultiLabelInstances trainingSet) throws Exception {
         // default number of models = twice the number of labels
         if (numOfModels == 0) {
             numOfModels = Math.min(2 * numLabels, binomial(numLabels, 3));
         }
-        
-        for (int i = 0; i < numOfModels; i++) {
-            debug("ECC Building Model:" + (i + 1) + "/" + numOfModels);
-            Instances sampledDataSet;
-            dataSet.randomize(rand);
-            if (useSamplingWithReplacement) {
-                int bagSize = dataSet.numInstances() * BagSizePercent / 100;
-                // create the in-bag dataset
-                sampledDataSet = dataSet.resampleWithWeights(new Random(1));
-                if (bagSize < dataSet.numInstances()) {
-                    sampledDataSet = new Instances(sampledDataSet, 0, bagSize);
+        ensemble = trainChains(0, numOfModels, trainingSet);
+        MultiLabelDecisionTemplate = buildDecisionTemplate(predictionType, threshold, trainingSet);
+    }
+
+    /**
+     * Trains new chains, in parallel when an executor is set. The seed and the
+     * label ordering of every chain are drawn up front from rand, so the
+     * chains do not depend on the order in which they are built, and training
+     * n chains then k more gives the chains that training n + k at once does.
+     *
+     * @param first the index of the first new chain in the ensemble
+     * @param count the number of chains to train
+     * @param trainingSet the training data
+     * @return the chains
+     * @throws Exception if a chain fails to train
+     */
+    private ClassifierChain[] trainChains(final int first, int count, final MultiLabelInstances trainingSet) throws Exception {
+        // shared read-only by all the chains, whose samples are drawn as row
+        // indices into it
+        final Instances dataSet = trainingSet.getDataSet();
+        final long[] seeds = new long[count];
+        final int[][] chains = new int[count][];
+        for (int i = 0; i < count; i++) {
+            seeds[i] = rand.nextLong();
+            chains[i] = randomChain(rand);
+        }
+
+        ClassifierChain[] trained = new ClassifierChain[count];
+        long start = metricsListener == null ? 0 : System.nanoTime();
+        if (executor == null) {
+            for (int i = 0; i < count; i++) {
+                trained[i] = buildChain(first + i, dataSet, trainingSet.getLabelsMetaData(), seeds[i], chains[i]);
+            }
+        } else {
+            List<Future<ClassifierChain>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final int model = i;
+                futures.add(executor.submit(new Callable<ClassifierChain>() {
+                    @Override
+                    public ClassifierChain call() throws Exception {
+                        return buildChain(first + model, dataSet, trainingSet.getLabelsMetaData(), seeds[model], chains[model]);
+                    }
+                }));
+            }
+            try {
+                for (int i = 0; i < count; i++) {
+                    trained[i] = futures.get(i).get();
                 }
-            } else {
-                RemovePercentage rmvp = new RemovePercentage();
-                rmvp.setInvertSelection(true);
-                rmvp.setPercentage(samplingPercentage);
-                rmvp.setInputFormat(dataSet);
-                sampledDataSet = Filter.useFilter(dataSet, rmvp);
+            } catch (ExecutionException ex) {
+                for (Future<ClassifierChain> future : futures) {
+                    future.cancel(true);
+                }
+                if (ex.getCause() instanceof Exception) {
+                    throw (Exception) ex.getCause();
+                }
+                throw ex;
             }
-            MultiLabelInstances train = new MultiLabelInstances(sampledDataSet, trainingSet.getLabelsMetaData());
+        }
+        if (metricsListener != null) {
+            metricsListener.ensembleTrained(first + count, System.nanoTime() - start);
+        }
+        return trained;
+    }
+
+    /**
+     * Builds the decision templates of the trained chains. Besides the
+     * templates the model predicts with, templates of other prediction types
+     * can be built over the same chains, to compare them without training the
+     * chains again.
+     *
+     * @param type the prediction type of the templates
+     * @param confThreshold the threshold of the template confidence
+     * @param trainingSet the training data
+     * @return the decision templates
+     * @throws Exception if the templates could not be built
+     */
+    public MLDT buildDecisionTemplate(MLDT.PredictionType type, double confThreshold, MultiLabelInstances trainingSet) throws Exception {
+        return buildDecisionTemplate(ensemble, type, confThreshold, trainingSet);
+    }
+
+    private MLDT buildDecisionTemplate(ClassifierChain[] chains, MLDT.PredictionType type, double confThreshold,
+            MultiLabelInstances trainingSet) throws Exception {
+        MLDT decisionTemplate = new MLDT(chains, type, confThreshold);
+        decisionTemplate.setExecutor(predictionExecutor);
+        decisionTemplate.setParallelCutoff(parallelPredictionCutoff);
+        decisionTemplate.setDecay(templateDecay);
+        decisionTemplate.setPrecision(templatePrecision);
+        decisionTemplate.setSparseLabels(sparseLabels);
+        decisionTemplate.setMetricsListener(metricsListener);
+        decisionTemplate.build(trainingSet);
+        return decisionTemplate;
+    }
+
+    /**
+     * Draws a random ordering of the labels
+     *
+     * @param random the random number generator
+     * @return a permutation of the label indices
+     */
+    private int[] randomChain(Random random) {
+        int[] chain = new int[numLabels];
+        for (int j = 0; j < numLabels; j++) {
+            chain[j] = j;
+        }
+        for (int j = 0; j < chain.length; j++) {
+            int randomPosition = random.nextInt(chain.length);
+            int temp = chain[j];
+            chain[j] = chain[randomPosition];
+            chain[randomPosition] = temp;
+        }
+        return chain;
+    }
+
+    /**
+     * Draws the sample of one model as row indices into the training data,
+     * shuffling them and then drawing a bag or keeping a percentage of them,
+     * as Weka would on a shuffled copy of the training data. Both draws use
+     * the generator of this model, so every model gets its own bag.
+     *
+     * @param dataSet the full training data
+     * @param seed the seed used to shuffle and sample the data of this model
+     * @return the indices of the rows of the sample
+     */
+    private int[] sampleRows(Instances dataSet, long seed) {
+        Random random = new Random(seed);
+        int[] rows = BaggingSample.shuffle(dataSet.numInstances(), random);
+        if (useSamplingWithReplacement) {
+            int bagSize = rows.length * BagSizePercent / 100;
+            return BaggingSample.bootstrap(rows, dataSet, bagSize, random);
+        }
+        return BaggingSample.subsample(rows, samplingPercentage);
+    }
+
+    /**
+     * Samples the training data of one model and builds its classifier chain
+     * on a view of the sampled rows. Only reads the shared data set, so
+     * several chains can be built at once.
+     *
+     * @param model the index of the model in the ensemble
+     * @param dataSet the full training data
+     * @param labelsMetaData the labels of the training data
+     * @param seed the seed used to shuffle and sample the data of this model
+     * @param chain the label ordering of this model
+     * @return the trained chain
+     * @throws Exception if the chain could not be built
+     */
+    private ClassifierChain buildChain(int model, Instances dataSet, LabelsMetaData labelsMetaData,
+            long seed, int[] chain) throws Exception {
+        debug("ECC Building Model:" + (model + 1) + "/" + numOfModels);
+        EnsembleMetricsListener listener = metricsListener;
+        long allocated = listener == null ? 0 : EnsembleMetricsListener.allocatedBytes();
+        long t = listener == null ? 0 : System.nanoTime();
+        // a view sharing the values of the rows, which are never copied for
+        // the chain; bagged rows weigh 1, as after resampleWithWeights
+        Instances sampledDataSet = BaggingSample.view(dataSet, sampleRows(dataSet, seed), useSamplingWithReplacement);
+        MultiLabelInstances train = new MultiLabelInstances(sampledDataSet, labelsMetaData);
+        debug(Arrays.toString(chain));
+
+        // MAYBE WE SHOULD CHECK NOT TO PRODUCE THE SAME VECTOR FOR THE
+        // INDICES
+        // BUT IN THE PAPER IT DID NOT MENTION SOMETHING LIKE THAT
+        // IT JUST SIMPLY SAY A RANDOM CHAIN ORDERING OF L
+        ClassifierChain classifierChain = new ClassifierChain(baseClassifier, chain);
+        // the chain sets the class index of the view, which rows of the shared
+        // data set would not see
+        assert BaggingSample.ownsRows(sampledDataSet) : "A row of the sample belongs to another data set.";
+        classifierChain.build(train);
+        if (listener != null) {
+            listener.chainTrained(model, sampledDataSet.numInstances(), System.nanoTime() - t,
+                    EnsembleMetricsListener.allocatedSince(allocated));
+        }
+        return classifierChain;
+    }
 
-            int[] chain = new int[numLabels];
-            for (int j = 0; j < numLabels; j++) {
-                chain[j] = j;
+    /**
+     * Copies the model, keeping the metrics listener, which is not
+     * serialized. The executors are not kept, since the copies are typically
+     * run on an executor themselves.
+     */
+    @Override
+    public MultiLabelLearner makeCopy() throws Exception {
+        EnsembleOfClassifierChainsDT copy = (EnsembleOfClassifierChainsDT) super.makeCopy();
+        copy.setMetricsListener(metricsListener);
+        return copy;
+    }
+
+    /**
+     * Sets the threshold of the decision templates to the one, among the given
+     * thresholds, that maximizes the example-based F-measure on a validation
+     * set. The chains are evaluated once on the validation set, so this costs
+     * one scoring run instead of one training per threshold.
+     *
+     * @param validation the validation set
+     * @param thresholds the thresholds to try
+     * @return the chosen threshold
+     * @throws Exception if the model has not been trained or a chain fails
+     */
+    public double tuneThreshold(MultiLabelInstances validation, double[] thresholds) throws Exception {
+        if (!isModelInitialized()) {
+            throw new ModelInitializationException("The model has not been trained.");
+        }
+        threshold = MultiLabelDecisionTemplate.tuneThreshold(validation, thresholds);
+        return threshold;
+    }
+
+    /**
+     * Sets a threshold of the decision templates per label, choosing among the
+     * given thresholds the one that maximizes the F-measure of each label on a
+     * validation set
+     *
+     * @param validation the validation set
+     * @param thresholds the thresholds to try
+     * @return the chosen threshold of each label
+     * @throws Exception if the model has not been trained or a chain fails
+     */
+    public double[] tuneLabelThresholds(MultiLabelInstances validation, double[] thresholds) throws Exception {
+        if (!isModelInitialized()) {
+            throw new ModelInitializationException("The model has not been trained.");
+        }
+        return MultiLabelDecisionTemplate.tuneLabelThresholds(validation, thresholds);
+    }
+
+    /**
+     * Prunes the ensemble to a subset of its chains that keeps the
+     * example-based F-measure of the decision templates on a validation set
+     * within a tolerance of that of the whole ensemble. The chains are
+     * evaluated once on the validation set, the subset is chosen greedily
+     * over the cached distances to the templates, and the templates of the
+     * chains kept are taken from the current ones, so the training data is
+     * not needed again. Predictions then only evaluate the chains kept, and
+     * numOfModels becomes their number.
+     *
+     * @param validation the validation set, held out of the training data
+     * @param tolerance the loss of F-measure allowed, e.g. 0.01
+     * @return the indices, in the ensemble before pruning, of the chains kept
+     * @throws Exception if the model has not been trained or a chain fails
+     */
+    public int[] prune(MultiLabelInstances validation, double tolerance) throws Exception {
+        if (!isModelInitialized()) {
+            throw new ModelInitializationException("The model has not been trained.");
+        }
+        Instances validationData = validation.getDataSet();
+        if (validationData.numInstances() == 0) {
+            throw new IllegalArgumentException("The validation set is empty");
+        }
+        LabelMatrix labels = LabelMatrix.decode(validationData, validation.getLabelIndices());
+        boolean[][] trueLabels = new boolean[validationData.numInstances()][];
+        for (int r = 0; r < trueLabels.length; r++) {
+            trueLabels[r] = labels.row(r, new boolean[numLabels]);
+        }
+        double[] validationConfidences = MultiLabelDecisionTemplate.computeConfidences(validationData);
+        int[] kept = MultiLabelDecisionTemplate.selectClassifiers(validationConfidences, trueLabels.length, trueLabels, tolerance);
+
+        ClassifierChain[] pruned = new ClassifierChain[kept.length];
+        for (int k = 0; k < kept.length; k++) {
+            pruned[k] = ensemble[kept[k]];
+        }
+        MultiLabelDecisionTemplate.retainClassifiers(kept);
+        ensemble = pruned;
+        numOfModels = kept.length;
+        return kept;
+    }
+
+    /**
+     * Trains new chains and adds them to the trained ensemble. The templates
+     * of each chain only depend on its own confidences, so only the new
+     * chains are evaluated on the training data and their templates are
+     * appended to the existing ones; the result is the model that building
+     * the larger ensemble at once gives, when trainingSet is the data the
+     * model was built on. Templates updated since by updateTemplates keep
+     * their updates, while those of the new chains are built on trainingSet
+     * only. Not supported with combined templates.
+     *
+     * @param numChains the number of chains to add
+     * @param trainingSet the training data
+     * @throws Exception if the model has not been trained or a chain fails to
+     * train
+     */
+    public void appendChains(int numChains, MultiLabelInstances trainingSet) throws Exception {
+        appendChainsInternal(numChains, trainingSet);
+    }
+
+    /**
+     * Appends new chains as appendChains does, returning the templates of the
+     * new chains alone
+     */
+    private MLDT appendChainsInternal(int numChains, MultiLabelInstances trainingSet) throws Exception {
+        if (!isModelInitialized()) {
+            throw new ModelInitializationException("The model has not been trained.");
+        }
+        if (predictionType == MLDT.PredictionType.COMBINED) {
+            throw new UnsupportedOperationException("Chains cannot be appended to combined templates.");
+        }
+        ClassifierChain[] added = trainChains(numOfModels, numChains, trainingSet);
+        MLDT addedTemplate = buildDecisionTemplate(added, predictionType, threshold, trainingSet);
+        MultiLabelDecisionTemplate.appendClassifiers(addedTemplate);
+        ClassifierChain[] grown = Arrays.copyOf(ensemble, numOfModels + numChains);
+        System.arraycopy(added, 0, grown, numOfModels, numChains);
+        ensemble = grown;
+        numOfModels += numChains;
+        return addedTemplate;
+    }
+
+    /**
+     * Grows the ensemble a few chains at a time until the example-based
+     * F-measure on a validation set stops improving. An untrained model is
+     * first built with step chains; then step chains are appended at a time,
+     * as appendChains does, and only the new chains are evaluated on the
+     * validation set. Growth stops when a step gains less than minGain, the
+     * chains of that step being dropped, or when maxChains are reached.
+     *
+     * @param trainingSet the training data
+     * @param validation the validation set
+     * @param step the number of chains added at a time
+     * @param maxChains the largest ensemble to grow
+     * @param minGain the smallest gain of F-measure for a step to be kept
+     * @return the number of chains of the ensemble
+     * @throws Exception if a chain fails to train or to predict
+     */
+    public int grow(MultiLabelInstances trainingSet, MultiLabelInstances validation, int step, int maxChains,
+            double minGain) throws Exception {
+        if (step <= 0) {
+            throw new IllegalArgumentException("The growth step must be positive");
+        }
+        Instances validationData = validation.getDataSet();
+        if (validationData.numInstances() == 0) {
+            throw new IllegalArgumentException("The validation set is empty");
+        }
+        if (!isModelInitialized()) {
+            numOfModels = Math.min(step, maxChains);
+            build(trainingSet);
+        }
+        LabelMatrix labels = LabelMatrix.decode(validationData, validation.getLabelIndices());
+        int validationSize = validationData.numInstances();
+        boolean[][] trueLabels = new boolean[validationSize][];
+        for (int r = 0; r < validationSize; r++) {
+            trueLabels[r] = labels.row(r, new boolean[numLabels]);
+        }
+
+        double[] confidences = MultiLabelDecisionTemplate.computeConfidences(validationData);
+        double best = MultiLabelDecisionTemplate.meanFMeasure(confidences, validationSize, trueLabels);
+        int bestSize = numOfModels;
+        while (numOfModels < maxChains) {
+            int previousSize = numOfModels;
+            MLDT added = appendChainsInternal(Math.min(step, maxChains - numOfModels), trainingSet);
+            confidences = MLDT.appendConfidences(confidences, previousSize, added.computeConfidences(validationData),
+                    numOfModels - previousSize, validationSize, numLabels);
+            double fMeasure = MultiLabelDecisionTemplate.meanFMeasure(confidences, validationSize, trueLabels);
+            if (fMeasure < best + minGain) {
+                break;
             }
-            for (int j = 0; j < chain.length; j++) {
-                int randomPosition = rand.nextInt(chain.length);
-                int temp = chain[j];
-                chain[j] = chain[randomPosition];
-                chain[randomPosition] = temp;
+            best = fMeasure;
+            bestSize = numOfModels;
+        }
+
+        if (bestSize < numOfModels) {
+            int[] kept = new int[bestSize];
+            for (int k = 0; k < bestSize; k++) {
+                kept[k] = k;
             }
-            debug(Arrays.toString(chain));
+            MultiLabelDecisionTemplate.retainClassifiers(kept);
+            ensemble = Arrays.copyOf(ensemble, bestSize);
+            numOfModels = bestSize;
+        }
+        return numOfModels;
+    }
+
+    /**
+     * Returns the prediction type of the decision templates
+     *
+     * @return the prediction type
+     */
+    public MLDT.PredictionType getPredictionType() {
+        return predictionType;
+    }
+
+    /**
+     * Returns the decision templates fused over the chains, or null before
+     * the model is built
+     *
+     * @return the decision templates
+     */
+    public MLDT getDecisionTemplate() {
+        return MultiLabelDecisionTemplate;
+    }
+
+    /**
+     * Evaluates every chain of the ensemble on a batch of instances, so that
+     * different fusions of the chain outputs can be compared on the same
+     * predictions
+     *
+     * @param batch the instances to predict
+     * @return the output of chain c for the r-th instance at [r][c]
+     * @throws Exception if the model has not been trained or a chain fails
+     */
+    public MultiLabelOutput[][] makeChainPredictions(Instances batch) throws Exception {
+        if (!isModelInitialized()) {
+            throw new ModelInitializationException("The model has not been trained.");
+        }
+        MultiLabelOutput[][] outputs = new MultiLabelOutput[batch.numInstances()][numOfModels];
+        for (int r = 0; r < outputs.length; r++) {
+            for (int c = 0; c < numOfModels; c++) {
+                outputs[r][c] = ensemble[c].makePrediction(batch.instance(r));
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * Folds new labelled instances into the decision templates, keeping the
+     * trained chains. Costs one evaluation of the chains per instance instead
+     * of a full retraining.
+     *
+     * @param mlinstances the labelled instances
+     * @throws Exception if the model has not been trained or a chain fails
+     */
+    public void updateTemplates(MultiLabelInstances mlinstances) throws Exception {
+        if (!isModelInitialized()) {
+            throw new ModelInitializationException("The model has not been trained.");
+        }
+        MultiLabelDecisionTemplate.updateTemplates(mlinstances);
+    }
 
-            // MAYBE WE SHOULD CHECK NOT TO PRODUCE THE SAME VECTOR FOR THE
-            // INDICES
-            // BUT IN THE PAPER IT DID NOT MENTION SOMETHING LIKE THAT
-            // IT JUST SIMPLY SAY A RANDOM CHAIN ORDERING OF L
-            ensemble[i] = new ClassifierChain(baseClassifier, chain);
-            ensemble[i].build(train);
+    /**
+     * Predicts a batch of instances, writing the bipartition of the r-th
+     * instance to bipartitions[r]. Each chain is evaluated over the whole batch
+     * before moving on to the next one.
+     *
+     * @param batch the instances to predict
+     * @param bipartitions the output, with at least batch.numInstances() rows
+     * of numLabels values
+     * @throws Exception if the model has not been trained or a chain fails
+     */
+    public void makePredictions(Instances batch, boolean[][] bipartitions) throws Exception {
+        if (!isModelInitialized()) {
+            throw new ModelInitializationException("The model has not been trained.");
+        }
+        MultiLabelDecisionTemplate.makePredictions(batch, bipartitions);
+    }
+
+    /**
+     * Predicts a batch of feature vectors, laid out as the attributes of the
+     * training data, writing the bipartition of the r-th row to
+     * bipartitions[r]
+     *
+     * @param features the rows to predict
+     * @param bipartitions the output, with at least features.length rows of
+     * numLabels values
+     * @throws Exception if the model has not been trained or a chain fails
+     */
+    public void makePredictions(double[][] features, boolean[][] bipartitions) throws Exception {
+        if (!isModelInitialized()) {
+            throw new ModelInitializationException("The model has not been trained.");
         }
-        MultiLabelDecisionTemplate = new MLDT(ensemble, predictionType, threshold);
-        MultiLabelDecisionTemplate.setBuilEach(false);
-        MultiLabelDecisionTemplate.setCriticalPhiValue(criticalPhiValue);
-        MultiLabelDecisionTemplate.build(trainingSet);
+        MultiLabelDecisionTemplate.makePredictions(features, bipartitions);
+    }
+
+    /**
+     * Predicts the rows of a columnar dataset, with the attributes of the
+     * training data, writing the bipartition of the r-th row to
+     * bipartitions[r]. The rows are predicted a block at a time, so a large
+     * file read with ColumnarDataset.read is scored without creating Weka
+     * instances.
+     *
+     * @param data the rows to predict
+     * @param bipartitions the output, with at least data.numInstances() rows
+     * of numLabels values
+     * @throws Exception if the model has not been trained or a chain fails
+     */
+    public void makePredictions(ColumnarDataset data, boolean[][] bipartitions) throws Exception {
+        if (!isModelInitialized()) {
+            throw new ModelInitializationException("The model has not been trained.");
+        }
+        MultiLabelDecisionTemplate.makePredictions(data, bipartitions);
+    }
+
+    /**
+     * Predicts one instance, evaluating the chains one at a time and stopping
+     * as soon as the remaining ones can no longer change the decision of any
+     * label. The bipartition is the one makePrediction gives.
+     *
+     * @param instance the instance to predict
+     * @param bipartition the output, of numLabels values
+     * @return the number of chains evaluated
+     * @throws Exception if the model has not been trained or a chain fails
+     * @see MLDT#makePredictionEarlyExit(Instance, boolean[])
+     */
+    public int makePredictionEarlyExit(Instance instance, boolean[] bipartition) throws Exception {
+        if (!isModelInitialized()) {
+            throw new ModelInitializationException("The model has not been trained.");
+        }
+        return MultiLabelDecisionTemplate.makePredictionEarlyExit(instance, bipartition);
     }
 
     @Override
@@ -336,4 +1053,56 @@ public class EnsembleOfClassifierChainsDT extends TransformationBasedMultiLabelL
 //        MultiLabelOutput mlo = new MultiLabelOutput(confidence, 0.5);
 //        return mlo;
     }
+
+    /**
+     * A configuration of the grid search, decided from the template
+     * confidences on the validation set that it shares with the other
+     * thresholds of the same trained chains and prediction type
+     */
+    private static class GridCandidate implements Comparable<GridCandidate> {
+
+        static final Comparator<GridCandidate> BY_SCORE = new Comparator<GridCandidate>() {
+            @Override
+            public int compare(GridCandidate a, GridCandidate b) {
+                int cmp = Double.compare(b.score, a.score);
+                return cmp != 0 ? cmp : a.compareTo(b);
+            }
+        };
+
+        final int order;
+        final Classifier baseLearner;
+        final boolean useSamplingWithReplacement;
+        final MLDT.PredictionType predictionType;
+        final double threshold;
+        final double[][] validationScores;
+        double score;
+
+        GridCandidate(int order, Classifier baseLearner, boolean useSamplingWithReplacement,
+                MLDT.PredictionType predictionType, double threshold, double[][] validationScores) {
+            this.order = order;
+            this.baseLearner = baseLearner;
+            this.useSamplingWithReplacement = useSamplingWithReplacement;
+            this.predictionType = predictionType;
+            this.threshold = threshold;
+            this.validationScores = validationScores;
+        }
+
+        /**
+         * Computes the example-based F-measure of the candidate on the first
+         * rows of the validation set
+         */
+        double evaluate(boolean[][] trueLabels, int rows) {
+            double sum = 0;
+            for (int r = 0; r < rows; r++) {
+                sum += MLDT.fMeasure(validationScores[r], threshold, trueLabels[r]);
+            }
+            score = sum / rows;
+            return score;
+        }
+
+        @Override
+        public int compareTo(GridCandidate other) {
+            return Integer.compare(order, other.order);
+        }
+    }
 }
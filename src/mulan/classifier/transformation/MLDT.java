@@ -1,12 +1,27 @@
 package mulan.classifier.transformation;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import mulan.classifier.ModelInitializationException;
 import mulan.classifier.MultiLabelLearner;
 import mulan.classifier.MultiLabelOutput;
+import mulan.data.ColumnarDataset;
+import mulan.data.LabelMatrix;
 import mulan.data.MultiLabelInstances;
+import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
 
@@ -20,9 +35,138 @@ public class MLDT extends TransformationBasedMultiLabelLearner {
     private static final long serialVersionUID = -446512578928821388L;
     private MultiLabelLearner[] classifiers;
     private int classifiersLength = 10;
-    private MLDTBR[] DT;
+    /**
+     * The decision templates, label-major: the positive template of label i
+     * is templates[i * 2 * classifiersLength + c] for classifier c, followed
+     * by its negative template, or with sparse labels that of the label in
+     * slot i of templateLabels. Null when the templates are read from a
+     * memory-mapped model file. Serialized by writeObject
+     */
+    private transient double[] templates;
+    /**
+     * The templates of a model loaded by {@link MLDTModelFile}, in the same
+     * layout, read in place from the mapped file in double or in single
+     * precision
+     */
+    private transient DoubleBuffer mappedTemplates;
+    private transient FloatBuffer mappedFloatTemplates;
+    /**
+     * Storage of the templates in memory. With FLOAT the templates are held
+     * in floatTemplates, and with QUANTIZED in quantizedTemplates, the
+     * other storages being null
+     */
+    private Precision precision = Precision.DOUBLE;
+    private transient float[] floatTemplates;
+    /**
+     * The templates quantized to round(value * QUANTIZATION_SCALE), read as
+     * unsigned bytes. A template without training rows is NaN, which has no
+     * quantized value: undefinedTemplates[2 * i] and [2 * i + 1] tell whether
+     * the positive and the negative template of label i are NaN
+     */
+    private transient byte[] quantizedTemplates;
+    private transient boolean[] undefinedTemplates;
+    /**
+     * Fixed scale of the quantized templates and confidences, which lie in
+     * [0,1]
+     */
+    static final int QUANTIZATION_SCALE = 255;
     private double confThreshold = 0.5;
+    /**
+     * Per-label thresholds of the template confidence, used instead of
+     * confThreshold when set
+     */
+    private double[] labelThresholds;
     private boolean  useMedian = false;
+    /**
+     * Whether the templates of each label span the confidences of the
+     * classifiers for all the labels, as in the COMBINED prediction type,
+     * instead of only those for the label
+     */
+    private boolean combined = false;
+    /**
+     * The combined templates, built besides the individual ones when combined
+     * is set, and null otherwise
+     */
+    private CombinedTemplates combinedTemplates;
+    /**
+     * Whether templates are only built for the labels relevant to at least
+     * one training instance
+     */
+    private boolean sparseLabels = false;
+    /**
+     * With sparse labels, the labels that have templates, in increasing
+     * order, and the slot of each label among them, or -1; the templates of
+     * the label in slot s are at s * 2 * classifiersLength. Null when every
+     * label has templates
+     */
+    private int[] templateLabels;
+    private int[] templateSlots;
+    /**
+     * Maximum error of the median templates. Medians are exact while a
+     * template cell holds at most EXACT_MEDIAN_LIMIT values, and are then
+     * estimated from a histogram over [0,1] with bins of this width. Zero keeps
+     * every median exact
+     */
+    private double medianErrorBound = 0.01;
+    private static final int EXACT_MEDIAN_LIMIT = 1024;
+    /**
+     * Number of rows of a columnar dataset predicted at a time
+     */
+    private static final int BATCH_BLOCK_SIZE = 1024;
+    /**
+     * Executor used to compute the predictions of the classifiers in parallel.
+     * When null the classifiers are evaluated sequentially
+     */
+    private transient ExecutorService executor;
+    /**
+     * Minimum number of classifiers for the predictions to be computed in
+     * parallel
+     */
+    private int parallelCutoff = 8;
+    /**
+     * Header of the training data, used to wrap the rows of feature vectors
+     * scored in batch
+     */
+    private Instances header;
+    /**
+     * Evaluates the classifiers on primitive feature vectors when they are
+     * classifier chains. Rebuilt on first use after deserialization
+     */
+    private transient ChainScoringEngine engine;
+    /**
+     * Total weight of the training rows behind the positive and the negative
+     * template of each label, kept so that new rows can be folded into mean
+     * templates
+     */
+    private double[] positiveWeights;
+    private double[] negativeWeights;
+    /**
+     * Weight kept by the rows already in a template each time a new row is
+     * folded into it. 1 keeps plain running means
+     */
+    private double decay = 1;
+    /**
+     * Receives the timings of the template building and of the predictions,
+     * when set
+     */
+    private transient EnsembleMetricsListener metricsListener;
+    /**
+     * Order in which {@link #makePredictionEarlyExit(Instance, boolean[])}
+     * evaluates the classifiers, or null to learn it from the templates
+     */
+    private int[] chainOrder;
+    /**
+     * Bounds of the early-exit prediction for the current templates,
+     * thresholds and order. Computed on first use, and dropped whenever one of
+     * them changes
+     */
+    private transient ExitBounds exitBounds;
+    /**
+     * Margin by which a decision must be settled before the remaining
+     * classifiers are skipped, per classifier, so that rounding in the
+     * distances can never flip it
+     */
+    private static final double EXIT_MARGIN = 1e-9;
 
     public static final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
@@ -30,6 +174,36 @@ public class MLDT extends TransformationBasedMultiLabelLearner {
         return (System.nanoTime() - t) / 1e6;
     }
 
+    /**
+     * How the confidences of the classifiers are compared with the templates
+     * of a label
+     */
+    public enum PredictionType {
+
+        /**
+         * Only the confidences of the classifiers for the label
+         */
+        INDIVIDUAL,
+        /**
+         * The confidences of the classifiers for all the labels, see
+         * {@link #setCombined(boolean)}
+         */
+        COMBINED
+    }
+
+    /**
+     * Creates a new instance
+     *
+     * @param classifiers the base-level classification algorithm that will be
+     * used for training each of the binary models
+     * @param predictionType how the confidences are compared with the templates
+     * @param confThreshold the threshold of the template confidence
+     */
+    public MLDT(MultiLabelLearner[] classifiers, PredictionType predictionType, double confThreshold) {
+        this(classifiers, confThreshold);
+        this.combined = predictionType == PredictionType.COMBINED;
+    }
+
     /**
      * Creates a new instance
      *
@@ -57,33 +231,476 @@ public class MLDT extends TransformationBasedMultiLabelLearner {
         this.classifiersLength = classifiers.length;
     }
 
-    private void buildTemplates(MultiLabelInstances mlinstances) throws Exception {
-        DT = new MLDTBR[numLabels];
-        for (int i = 0; i < numLabels; i++) {
-            DT[i] = new MLDTBR();
+    /**
+     * Sets the threshold on the template confidence above which a label is
+     * predicted. Only affects the decision, so it can be changed after the
+     * templates have been built.
+     *
+     * @param confThreshold the threshold
+     */
+    public void setConfThreshold(double confThreshold) {
+        this.confThreshold = confThreshold;
+        exitBounds = null;
+    }
+
+    public double getConfThreshold() {
+        return confThreshold;
+    }
+
+    /**
+     * Sets a threshold of the template confidence for each label, replacing
+     * confThreshold
+     *
+     * @param labelThresholds the thresholds, or null to use confThreshold for
+     * every label
+     */
+    public void setLabelThresholds(double[] labelThresholds) {
+        this.labelThresholds = labelThresholds;
+        exitBounds = null;
+    }
+
+    public double[] getLabelThresholds() {
+        return labelThresholds;
+    }
+
+    /**
+     * Sets whether the templates are the median instead of the mean of the
+     * confidences of the training instances
+     *
+     * @param useMedian whether to use the median
+     */
+    public void setUseMedian(boolean useMedian) {
+        this.useMedian = useMedian;
+    }
+
+    public boolean getUseMedian() {
+        return useMedian;
+    }
+
+    /**
+     * Sets whether each label is decided by comparing the confidences of the
+     * classifiers for all the labels with combined templates, instead of only
+     * their confidences for that label. Deciding all the labels then costs
+     * numLabels times more, and is done in one pass over the templates of all
+     * the labels. Takes effect when the model is built.
+     *
+     * @param combined whether to use combined templates
+     */
+    public void setCombined(boolean combined) {
+        this.combined = combined;
+    }
+
+    public boolean getCombined() {
+        return combined;
+    }
+
+    /**
+     * Sets whether templates are only built for the labels relevant to at
+     * least one training instance. Labels never seen in training have NaN
+     * templates and are never predicted, with a confidence of 0, so with
+     * thousands of labels of which a row has a handful, as in extreme
+     * multi-label data, this saves their templates and the cost of building
+     * and deciding them; the predictions
+     * are those of the full templates. Not supported with combined templates
+     * nor with incremental updates. Takes effect when the model is built.
+     *
+     * @param sparseLabels whether to skip the labels never seen in training
+     */
+    public void setSparseLabels(boolean sparseLabels) {
+        this.sparseLabels = sparseLabels;
+    }
+
+    public boolean getSparseLabels() {
+        return sparseLabels;
+    }
+
+    /**
+     * Returns the offset of the positive template of a label, its negative
+     * template following classifiersLength values later, or -1 when the label
+     * has no templates
+     */
+    private int templateOffset(int label) {
+        if (templateSlots == null) {
+            return label * 2 * classifiersLength;
         }
+        int slot = templateSlots[label];
+        return slot < 0 ? -1 : slot * 2 * classifiersLength;
+    }
 
-        Instances newtrainData = mlinstances.getDataSet();
-        for (int d = 0; d < newtrainData.size(); d++) {
-            Instance inst = newtrainData.get(d);
-            boolean[] trueLabels = getTrueLabels(inst, numLabels, mlinstances.getLabelIndices());
+    /**
+     * Returns the number of labels that have templates
+     */
+    private int numTemplateLabels() {
+        return templateLabels == null ? numLabels : templateLabels.length;
+    }
 
-            for (int j = 0; j < classifiersLength; j++) {
-                double[] confidencesForInstance = classifiers[j].makePrediction(inst).getConfidences();
+    /**
+     * Storage of the templates and of the confidences they are compared with
+     */
+    public enum Precision {
 
-                for (int i = 0; i < numLabels; i++) {
-                    DT[i].addColumn(j, confidencesForInstance, trueLabels[i]);
+        /**
+         * Templates and confidences in double precision
+         */
+        DOUBLE,
+        /**
+         * Templates in single precision, half the size
+         */
+        FLOAT,
+        /**
+         * Templates and confidences quantized to 8 bits with a fixed scale,
+         * an eighth of the size, compared by integer L1 distances
+         */
+        QUANTIZED
+    }
+
+    /**
+     * Sets how the templates are stored. Reduced precisions shrink the
+     * templates of large-label models so that more of them stays in the
+     * cache, at the cost of rounding the template confidences; the
+     * bipartitions may differ from those in double precision for instances
+     * close to a threshold. Converts the templates of a trained model, so
+     * going back to a higher precision does not restore the rounded values.
+     * Not supported with combined templates. Quantized templates cannot be
+     * updated incrementally, nor used by the early-exit prediction.
+     *
+     * @param precision the storage of the templates
+     * @throws UnsupportedOperationException if a reduced precision is set on
+     * trained combined templates
+     */
+    public void setPrecision(Precision precision) {
+        if (combinedTemplates != null && precision != Precision.DOUBLE) {
+            throw new UnsupportedOperationException("Combined templates are only stored in double precision.");
+        }
+        this.precision = precision;
+        applyPrecision();
+    }
+
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Sets the maximum error of the median templates. Larger training sets are
+     * summarized in a histogram of 1 / medianErrorBound bins per template cell
+     * instead of keeping every confidence, and each median template is then
+     * within medianErrorBound of the exact median.
+     *
+     * @param medianErrorBound the maximum error, or 0 for exact medians
+     */
+    public void setMedianErrorBound(double medianErrorBound) {
+        this.medianErrorBound = medianErrorBound;
+    }
+
+    public double getMedianErrorBound() {
+        return medianErrorBound;
+    }
+
+    /**
+     * Sets the executor used to compute the predictions of the classifiers in
+     * parallel, both while building the templates and when predicting. Each
+     * classifier is only evaluated by one task at a time, but
+     * concurrent calls to makePrediction on the same model are not supported.
+     * The executor is not serialized with the model.
+     *
+     * @param executor the executor, or null to evaluate the classifiers
+     * sequentially
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the weight kept by the rows already in a template each time
+     * {@link #update(Instance)} folds a new row into it. With a decay below 1
+     * the templates are exponentially weighted means that follow drift in the
+     * data, the weight of a row halving every log(0.5) / log(decay) later rows
+     * of the same template.
+     *
+     * @param decay the decay, in (0,1], or 1 for plain running means
+     */
+    public void setDecay(double decay) {
+        if (decay <= 0 || decay > 1) {
+            throw new IllegalArgumentException("The decay must be in (0,1]");
+        }
+        this.decay = decay;
+    }
+
+    public double getDecay() {
+        return decay;
+    }
+
+    /**
+     * Sets the listener that receives the time taken to build the templates,
+     * to score each classifier and to decide each label. It is not serialized
+     * with the model.
+     *
+     * @param metricsListener the listener, or null to record nothing
+     */
+    public void setMetricsListener(EnsembleMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    public EnsembleMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the minimum number of classifiers for the predictions to be computed
+     * in parallel. Smaller ensembles are always evaluated sequentially, since
+     * the cost of the hand-off exceeds the cost of the chain walks.
+     *
+     * @param parallelCutoff the minimum number of classifiers
+     */
+    public void setParallelCutoff(int parallelCutoff) {
+        this.parallelCutoff = parallelCutoff;
+    }
+
+    public int getParallelCutoff() {
+        return parallelCutoff;
+    }
+
+    /**
+     * Sets the order in which the early-exit prediction evaluates the
+     * classifiers. Only changes how many classifiers are evaluated, never the
+     * predictions.
+     *
+     * @param chainOrder a permutation of the indices of the classifiers, or
+     * null to order them by how much they narrow the decisions, as learned from
+     * the templates
+     */
+    public void setChainOrder(int[] chainOrder) {
+        if (chainOrder != null) {
+            boolean[] seen = new boolean[classifiersLength];
+            for (int c : chainOrder) {
+                if (chainOrder.length != classifiersLength || c < 0 || c >= classifiersLength || seen[c]) {
+                    throw new IllegalArgumentException("The order must be a permutation of the " + classifiersLength + " classifiers");
+                }
+                seen[c] = true;
+            }
+        }
+        this.chainOrder = chainOrder == null ? null : chainOrder.clone();
+        exitBounds = null;
+    }
+
+    /**
+     * Returns the order in which the early-exit prediction evaluates the
+     * classifiers, learned from the templates unless it has been set
+     *
+     * @return the indices of the classifiers, in evaluation order
+     * @throws ModelInitializationException if the model has not been trained
+     */
+    public int[] getChainOrder() throws ModelInitializationException {
+        if (!isModelInitialized()) {
+            throw new ModelInitializationException("The model has not been trained.");
+        }
+        return exitBounds().order.clone();
+    }
+
+    private void buildTemplates(MultiLabelInstances mlinstances, AtomicLong taskBytes) throws Exception {
+        if (combined && useMedian) {
+            throw new UnsupportedOperationException("Combined templates cannot be medians.");
+        }
+        if (combined && precision != Precision.DOUBLE) {
+            throw new UnsupportedOperationException("Combined templates are only stored in double precision.");
+        }
+        if (combined && sparseLabels) {
+            throw new UnsupportedOperationException("Combined templates cover every label, they cannot be sparse.");
+        }
+        final Instances newtrainData = mlinstances.getDataSet();
+        header = new Instances(newtrainData, 0);
+
+        // the labels are decoded once, and only the templates of the labels
+        // seen in training are built in sparse mode
+        final LabelMatrix trueLabels = LabelMatrix.decode(newtrainData, mlinstances.getLabelIndices());
+        int[] labelCounts = trueLabels.labelCounts();
+        templateLabels = null;
+        templateSlots = null;
+        if (sparseLabels) {
+            int seen = 0;
+            templateSlots = new int[numLabels];
+            for (int i = 0; i < numLabels; i++) {
+                templateSlots[i] = labelCounts[i] > 0 ? seen++ : -1;
+            }
+            templateLabels = new int[seen];
+            for (int i = 0; i < numLabels; i++) {
+                if (templateSlots[i] >= 0) {
+                    templateLabels[templateSlots[i]] = i;
+                }
+            }
+        }
+        final MLDTBR DT = new MLDTBR(labelCounts, newtrainData.size());
+
+        // each pass over the data evaluates a single classifier, and touches
+        // only the template cells of that classifier
+        if (executor == null || classifiersLength < parallelCutoff) {
+            for (int j = 0; j < classifiersLength; j++) {
+                addColumns(DT, j, newtrainData, trueLabels);
+            }
+        } else {
+            List<Callable<Void>> tasks = new ArrayList<>(classifiersLength);
+            for (int j = 0; j < classifiersLength; j++) {
+                final int classifier = j;
+                Callable<Void> task = new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        addColumns(DT, classifier, newtrainData, trueLabels);
+                        return null;
+                    }
+                };
+                tasks.add(taskBytes == null ? task : EnsembleMetricsListener.counting(task, taskBytes));
+            }
+            try {
+                for (Future<Void> future : executor.invokeAll(tasks)) {
+                    future.get();
                 }
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof Exception) {
+                    throw (Exception) ex.getCause();
+                }
+                throw ex;
+            }
+        }
+
+        templates = new double[numTemplateLabels() * 2 * classifiersLength];
+        DT.computeTemplates(templates);
+        combinedTemplates = DT.combinedTemplates;
+        mappedTemplates = null;
+        mappedFloatTemplates = null;
+        floatTemplates = null;
+        quantizedTemplates = null;
+        exitBounds = null;
+        applyPrecision();
+        if (useMedian || templateLabels != null) {
+            positiveWeights = null;
+            negativeWeights = null;
+        } else {
+            positiveWeights = new double[numLabels];
+            negativeWeights = new double[numLabels];
+            for (int i = 0; i < numLabels; i++) {
+                positiveWeights[i] = DT.posivitesCount[i];
+                negativeWeights[i] = DT.negativesCount[i];
             }
+        }
+    }
+
+    /**
+     * Folds a new labelled instance into the templates, without retraining
+     * the classifiers. The classifiers are evaluated once on the instance, and
+     * the templates of each label move towards its confidences by 1 / the
+     * total weight of the template, so that with no decay the result is the
+     * same as building the templates on the training data plus the instance.
+     * Not safe to call while other threads predict with this model.
+     *
+     * @param instance the labelled instance
+     * @throws Exception if the model has not been trained, its templates are
+     * medians, or a classifier fails to predict the instance
+     */
+    public void update(Instance instance) throws Exception {
+        checkUpdatable();
+        boolean[] trueLabels = getTrueLabels(instance, numLabels, labelIndices);
+        addToTemplates(computeColumns(instance), trueLabels);
+        applyPrecision();
+    }
+
+    /**
+     * Folds a batch of new labelled instances into the templates, in order,
+     * as {@link #update(Instance)} does for each of them. The classifiers are
+     * evaluated over the whole batch as in
+     * {@link #makePredictions(Instances, boolean[][])}.
+     *
+     * @param mlinstances the labelled instances
+     * @throws Exception if the model has not been trained, its templates are
+     * medians, or a classifier fails to predict an instance
+     */
+    public void updateTemplates(MultiLabelInstances mlinstances) throws Exception {
+        checkUpdatable();
+        Instances data = mlinstances.getDataSet();
+        double[] confidences = computeConfidences(data);
+        LabelMatrix labels = LabelMatrix.decode(data, mlinstances.getLabelIndices());
+        int stride = classifiersLength * numLabels;
+        double[] columns = new double[stride];
+        boolean[] trueLabels = new boolean[numLabels];
+        for (int r = 0; r < data.numInstances(); r++) {
+            transpose(confidences, r * stride, columns);
+            addToTemplates(columns, labels.row(r, trueLabels));
+        }
+        applyPrecision();
+    }
 
+    private void checkUpdatable() throws ModelInitializationException {
+        if (!isModelInitialized()) {
+            throw new ModelInitializationException("The model has not been trained.");
+        }
+        if (useMedian) {
+            throw new UnsupportedOperationException("Median templates cannot be updated incrementally.");
+        }
+        if (precision == Precision.QUANTIZED) {
+            throw new UnsupportedOperationException("Quantized templates cannot be updated incrementally.");
+        }
+        if (templateLabels != null) {
+            throw new UnsupportedOperationException("Sparse-label templates cannot be updated incrementally.");
+        }
+        if (positiveWeights == null) {
+            throw new ModelInitializationException("The template weights are missing, the model must be rebuilt.");
         }
+    }
 
+    /**
+     * Moves the positive or negative template of each label, according to
+     * the true labels, towards the label-major confidences of one row
+     */
+    private void addToTemplates(double[] columns, boolean[] trueLabels) {
+        if (templates == null) {
+            // mapped templates are read-only, updates work on a private copy,
+            // in double precision and rounded again after each update
+            templates = templateValues();
+            mappedTemplates = null;
+            mappedFloatTemplates = null;
+            floatTemplates = null;
+        }
+        exitBounds = null;
+        double[] previousWeights = new double[numLabels];
+        double[] weights = new double[numLabels];
         for (int i = 0; i < numLabels; i++) {
-            DT[i].computeTemplates();
+            int template = i * 2 * classifiersLength;
+            double previous;
+            double weight;
+            if (trueLabels[i]) {
+                previous = positiveWeights[i];
+                weight = positiveWeights[i] = decay * previous + 1;
+            } else {
+                template += classifiersLength;
+                previous = negativeWeights[i];
+                weight = negativeWeights[i] = decay * previous + 1;
+            }
+            previousWeights[i] = previous;
+            weights[i] = weight;
+            int column = i * classifiersLength;
+            for (int c = 0; c < classifiersLength; c++) {
+                double confidence = columns[column + c];
+                // a template without rows is NaN, and starts from the first one
+                templates[template + c] = previous == 0 ? confidence
+                        : templates[template + c] + (confidence - templates[template + c]) / weight;
+            }
+        }
+        if (combinedTemplates != null) {
+            combinedTemplates.update(columns, trueLabels, previousWeights, weights);
         }
     }
 
-    private boolean[] getTrueLabels(Instance instance, int numLabels, int[] labelIndices) {
+    private void addColumns(MLDTBR DT, int classifier, Instances data, LabelMatrix trueLabels) throws Exception {
+        for (int d = 0; d < data.size(); d++) {
+            double[] confidencesForInstance = classifiers[classifier].makePrediction(data.get(d)).getConfidences();
+            DT.addColumn(classifier, confidencesForInstance, trueLabels, d);
+        }
+    }
+
+    static boolean[] getTrueLabels(Instance instance, int numLabels, int[] labelIndices) {
 
         boolean[] trueLabels = new boolean[numLabels];
         for (int counter = 0; counter < numLabels; counter++) {
@@ -97,7 +714,20 @@ public class MLDT extends TransformationBasedMultiLabelLearner {
 
     @Override
     protected void buildInternal(MultiLabelInstances all) throws Exception {
-        buildTemplates(all);
+        EnsembleMetricsListener listener = metricsListener;
+        if (listener == null) {
+            buildTemplates(all, null);
+            return;
+        }
+        // the tasks on the executor count their own allocation
+        AtomicLong taskBytes = new AtomicLong();
+        long allocated = EnsembleMetricsListener.allocatedBytes();
+        long t = System.nanoTime();
+        buildTemplates(all, taskBytes);
+        long nanos = System.nanoTime() - t;
+        allocated = EnsembleMetricsListener.allocatedSince(allocated);
+        listener.templatesBuilt(classifiersLength, numLabels, all.getNumInstances(), nanos,
+                allocated < 0 ? -1 : allocated + taskBytes.get());
     }
 
     private double[] bipartition2double(boolean[] bipartition) {
@@ -115,154 +745,1545 @@ public class MLDT extends TransformationBasedMultiLabelLearner {
 
     @Override
     protected MultiLabelOutput makePredictionInternal(Instance instance) throws Exception {
-        double[][] confidencesMatrix = new double[classifiersLength][numLabels];
+        EnsembleMetricsListener listener = metricsListener;
+        long start = listener == null ? 0 : System.nanoTime();
         boolean[] bipartition = new boolean[numLabels];
+        double[] columns = computeColumns(instance);
 
-        for (int c = 0; c < classifiersLength; c++) {
-            confidencesMatrix[c] = classifiers[c].makePrediction(instance).getConfidences();
-        }
-
-        for (int i = 0; i < numLabels; i++) {
-            bipartition[i] = DT[i].makePredictionIndividual(i, confidencesMatrix);
+        double[] confidences = new double[numLabels];
+        if (combinedTemplates != null) {
+            // all the labels in one pass over the templates
+            combinedTemplates.scores(columns, 1, confidences);
+            for (int i = 0; i < numLabels; i++) {
+                confidences[i] = defined(confidences[i]);
+                bipartition[i] = confidences[i] > threshold(i);
+            }
+        } else {
+            for (int i = 0; i < numLabels; i++) {
+                long t = listener == null ? 0 : System.nanoTime();
+                confidences[i] = defined(makePredictionIndividual(i, columns, i * classifiersLength));
+                bipartition[i] = confidences[i] > threshold(i);
+                if (listener != null) {
+                    listener.labelDecided(i, System.nanoTime() - t);
+                }
+            }
         }
 
-        return new MultiLabelOutput(bipartition);
-    }
-
-    public MultiLabelOutput makePrediction(double[][] confidencesMatrix) {
-        boolean[] bipartition = new boolean[numLabels];
-
-        for (int i = 0; i < numLabels; i++) {
-            bipartition[i] = DT[i].makePredictionIndividual(i, confidencesMatrix);
+        if (listener != null) {
+            listener.predicted(1, System.nanoTime() - start);
         }
-
-        return new MultiLabelOutput(bipartition);
+        return new MultiLabelOutput(bipartition, confidences);
     }
 
     /**
-     * Multilabel Decision Template builder using the Binary Relevance approach
+     * Predicts the labels of one instance, evaluating the classifiers one at a
+     * time in the chain order and stopping as soon as the remaining ones can
+     * no longer change any decision. The bipartition is always the one
+     * makePrediction gives; only the number of classifiers evaluated depends
+     * on the instance.
+     * <p>
+     * A label is positive when (1 - t) dNeg - t dPos > 0, t being its
+     * threshold and dPos, dNeg the L1 distances to its templates. The term of
+     * classifier c, (1 - t) |x - neg| - t |x - pos|, is bounded over x in
+     * [0,1] by its values at 0, 1 and the two templates, so the decision is
+     * settled once the partial sum stays on one side of 0 whatever the
+     * confidences of the remaining classifiers. Labels still open after the
+     * last classifier are decided from their full distances, as makePrediction
+     * does. The classifiers are evaluated sequentially, whatever the executor.
+     * Not supported with combined templates, whose terms span every label.
      *
+     * @param instance the instance to predict
+     * @param bipartition the output, of numLabels values
+     * @return the number of classifiers evaluated
+     * @throws Exception if the model has not been trained or a classifier
+     * fails to predict the instance
      */
-    private class MLDTBR {
-
-        private int posivitesCount = 0;
-        private int negativesCount = 0;
-        private final double[][] positiveMatrix = new double[classifiersLength][numLabels];
-        private final double[][] negativeMatrix = new double[classifiersLength][numLabels];
-        private final ArrayList<double[]> positiveInstances = new ArrayList<>();
-        private final ArrayList<double[]> nagetiveInstances = new ArrayList<>();
-        private boolean[] relevancyMask;
-
-        public MLDTBR() {
+    public int makePredictionEarlyExit(Instance instance, boolean[] bipartition) throws Exception {
+        if (!isModelInitialized()) {
+            throw new ModelInitializationException("The model has not been trained.");
         }
-
-        public void addColumn(int index, double[] confidences, boolean trueLabel) {
-            if (trueLabel) {
-                //Add to positiveMatrix
-                addMatrixMean(index, positiveMatrix, confidences);
-                addInstances(positiveInstances, confidences);
-                posivitesCount++;
-            } else {
-                //Add to negativeMatrix
-                addMatrixMean(index, negativeMatrix, confidences);
-                addInstances(nagetiveInstances, confidences);
-                negativesCount++;
-            }
+        if (combinedTemplates != null) {
+            throw new UnsupportedOperationException("The early-exit prediction only supports individual templates.");
         }
-
-        public void computeTemplates() {
-            posivitesCount = posivitesCount / classifiersLength;
-            negativesCount = negativesCount / classifiersLength;
-
-            //compute positive matrix mean
-            if (useMedian) {
-                computeMatrixMedian(positiveMatrix, positiveInstances);
-                computeMatrixMedian(negativeMatrix, nagetiveInstances);
-
-            } else {
-                computeMatrixMean(positiveMatrix, posivitesCount);
-                computeMatrixMean(negativeMatrix, negativesCount);
+        if (precision == Precision.QUANTIZED) {
+            throw new UnsupportedOperationException("The early-exit prediction does not support quantized templates.");
+        }
+        EnsembleMetricsListener listener = metricsListener;
+        long start = listener == null ? 0 : System.nanoTime();
+        ExitBounds bounds = exitBounds();
+        double margin = EXIT_MARGIN * classifiersLength;
+        double[] columns = new double[numLabels * classifiersLength];
+        double[] sums = new double[numLabels];
+        boolean[] open = new boolean[numLabels];
+        int numOpen = 0;
+        for (int i = 0; i < numLabels; i++) {
+            // labels without templates are never predicted
+            open[i] = templateOffset(i) >= 0;
+            bipartition[i] = false;
+            if (open[i]) {
+                numOpen++;
             }
-
         }
 
-        private void computeMatrixMean(double[][] matrix, int count) {
-            for (int i = 0; i < classifiersLength; i++) {
-                for (int j = 0; j < numLabels; j++) {
-                    matrix[i][j] /= count;
+        ChainScoringEngine scoringEngine = scoringEngine();
+        double[] features = scoringEngine != null ? instance.toDoubleArray() : null;
+        int evaluated = 0;
+        while (numOpen > 0 && evaluated < classifiersLength) {
+            int c = bounds.order[evaluated++];
+            if (scoringEngine != null) {
+                scoreChain(scoringEngine, c, features, columns);
+            } else {
+                double[] confidences = predictChain(c, instance);
+                for (int i = 0; i < numLabels; i++) {
+                    columns[i * classifiersLength + c] = confidences[i];
                 }
             }
-        }
-
-        private void computeMatrixMedian(double[][] matrix, ArrayList<double[]> instances) {
-            int len = classifiersLength;
-
-            for (int j = 0; j < len; j++) {
-                for (int l = 0; l < numLabels; l++) {
-                    ArrayList<Double> allValuesL = new ArrayList<>();
-                    for (int i = j; i < instances.size(); i += len) {
-                        allValuesL.add(instances.get(i)[l]);
-                    }
-                    double median = median(allValuesL);
-                    matrix[j][l] = median;
+            for (int i = 0; i < numLabels; i++) {
+                if (!open[i]) {
+                    continue;
+                }
+                double t = threshold(i);
+                double confidence = columns[i * classifiersLength + c];
+                int positive = templateOffset(i) + c;
+                sums[i] += (1 - t) * Math.abs(confidence - templateValue(positive + classifiersLength))
+                        - t * Math.abs(confidence - templateValue(positive));
+                // NaN templates never settle, and are decided as makePrediction does
+                int remaining = i * (classifiersLength + 1) + evaluated;
+                if (sums[i] + bounds.lower[remaining] > margin) {
+                    bipartition[i] = true;
+                } else if (sums[i] + bounds.upper[remaining] < -margin) {
+                    bipartition[i] = false;
+                } else {
+                    continue;
                 }
+                open[i] = false;
+                numOpen--;
             }
         }
-
-        private double median(ArrayList<Double> numArray) {
-
-            Collections.sort(numArray);
-            int middle = numArray.size() / 2;
-            double medianValue = 0;
-            if (numArray.size() % 2 == 1) {
-                medianValue = numArray.get(middle);
-            } else {
-                medianValue = (numArray.get(middle - 1) + numArray.get(middle)) / 2;
+        for (int i = 0; i < numLabels; i++) {
+            if (open[i]) {
+                bipartition[i] = makePredictionIndividual(i, columns, i * classifiersLength) > threshold(i);
             }
-
-            return medianValue;
         }
 
-        private void addMatrixMean(int index, double[][] matrix, double[] confidences) {
-            for (int j = 0; (j < numLabels) && (j < confidences.length); j++) {
-                matrix[index][j] += confidences[j];
-            }
+        if (listener != null) {
+            listener.predicted(1, System.nanoTime() - start);
         }
+        return evaluated;
+    }
 
-        private void addInstances(ArrayList<double[]> instances, double[] confidences) {
-            instances.add(confidences);
+    /**
+     * Returns the early-exit bounds, computing them for the current templates
+     * and thresholds if needed
+     */
+    private ExitBounds exitBounds() {
+        ExitBounds bounds = exitBounds;
+        if (bounds != null) {
+            return bounds;
+        }
+        // range of the term of each classifier for each label
+        double[] lower = new double[numLabels * classifiersLength];
+        double[] upper = new double[numLabels * classifiersLength];
+        final double[] narrowing = new double[classifiersLength];
+        for (int i = 0; i < numLabels; i++) {
+            int offset = templateOffset(i);
+            if (offset < 0) {
+                continue;
+            }
+            double t = threshold(i);
+            for (int c = 0; c < classifiersLength; c++) {
+                double positive = templateValue(offset + c);
+                double negative = templateValue(offset + classifiersLength + c);
+                // the term is piecewise linear in the confidence, with its
+                // extremes at the ends of [0,1] or at the templates
+                double[] points = {0, 1, positive, negative};
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                for (double x : points) {
+                    double term = (1 - t) * Math.abs(x - negative) - t * Math.abs(x - positive);
+                    min = Math.min(min, term);
+                    max = Math.max(max, term);
+                }
+                lower[i * classifiersLength + c] = min;
+                upper[i * classifiersLength + c] = max;
+                if (!Double.isNaN(max - min)) {
+                    narrowing[c] += max - min;
+                }
+            }
+        }
+
+        int[] order = chainOrder;
+        if (order == null) {
+            // the classifiers that narrow the decisions the most come first
+            Integer[] sorted = new Integer[classifiersLength];
+            for (int c = 0; c < classifiersLength; c++) {
+                sorted[c] = c;
+            }
+            Arrays.sort(sorted, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(narrowing[b], narrowing[a]);
+                }
+            });
+            order = new int[classifiersLength];
+            for (int c = 0; c < classifiersLength; c++) {
+                order[c] = sorted[c];
+            }
+        }
+
+        // sums of the bounds of the classifiers from the k-th in order onwards
+        bounds = new ExitBounds();
+        bounds.order = order;
+        bounds.lower = new double[numLabels * (classifiersLength + 1)];
+        bounds.upper = new double[numLabels * (classifiersLength + 1)];
+        for (int i = 0; i < numLabels; i++) {
+            int row = i * (classifiersLength + 1);
+            for (int k = classifiersLength - 1; k >= 0; k--) {
+                bounds.lower[row + k] = bounds.lower[row + k + 1] + lower[i * classifiersLength + order[k]];
+                bounds.upper[row + k] = bounds.upper[row + k + 1] + upper[i * classifiersLength + order[k]];
+            }
+        }
+        exitBounds = bounds;
+        return bounds;
+    }
+
+    /**
+     * Returns one value of the templates, in their flat label-major layout,
+     * whatever their storage
+     */
+    private double templateValue(int index) {
+        if (templates != null) {
+            return templates[index];
+        }
+        if (floatTemplates != null) {
+            return floatTemplates[index];
+        }
+        if (quantizedTemplates != null) {
+            return dequantize(index);
+        }
+        return mappedTemplates != null ? mappedTemplates.get(index) : mappedFloatTemplates.get(index);
+    }
+
+    /**
+     * Evaluates the classifiers on one instance, returning their confidences
+     * in label-major order
+     */
+    private double[] computeColumns(Instance instance) throws Exception {
+        double[] columns = new double[numLabels * classifiersLength];
+
+        ChainScoringEngine scoringEngine = scoringEngine();
+        if (scoringEngine != null) {
+            // converted once and shared by all the chains, which write their
+            // confidences straight into label-major order
+            double[] features = instance.toDoubleArray();
+            if (executor == null || classifiersLength < parallelCutoff) {
+                for (int c = 0; c < classifiersLength; c++) {
+                    scoreChain(scoringEngine, c, features, columns);
+                }
+            } else {
+                makePredictionsParallel(scoringEngine, features, columns);
+            }
+        } else {
+            double[][] confidencesMatrix = new double[classifiersLength][];
+            if (executor == null || classifiersLength < parallelCutoff) {
+                for (int c = 0; c < classifiersLength; c++) {
+                    confidencesMatrix[c] = predictChain(c, instance);
+                }
+            } else {
+                makePredictionsParallel(instance, confidencesMatrix);
+            }
+            transpose(confidencesMatrix, columns);
+        }
+        return columns;
+    }
+
+    /**
+     * Scores one chain with the engine into the label-major columns, timing it
+     * when a listener is set
+     */
+    private void scoreChain(ChainScoringEngine scoringEngine, int c, double[] features, double[] columns) throws Exception {
+        EnsembleMetricsListener listener = metricsListener;
+        if (listener == null) {
+            scoringEngine.score(c, features, columns, c, classifiersLength);
+            return;
+        }
+        long t = System.nanoTime();
+        scoringEngine.score(c, features, columns, c, classifiersLength);
+        listener.chainScored(c, 1, System.nanoTime() - t);
+    }
+
+    /**
+     * Returns the confidences of one classifier for an instance, timing it
+     * when a listener is set
+     */
+    private double[] predictChain(int c, Instance instance) throws Exception {
+        EnsembleMetricsListener listener = metricsListener;
+        if (listener == null) {
+            return classifiers[c].makePrediction(instance).getConfidences();
+        }
+        long t = System.nanoTime();
+        double[] confidences = classifiers[c].makePrediction(instance).getConfidences();
+        listener.chainScored(c, 1, System.nanoTime() - t);
+        return confidences;
+    }
+
+    /**
+     * Fans the predictions of the classifiers out over the executor and joins
+     * them into the rows of the confidences matrix
+     */
+    private void makePredictionsParallel(final Instance instance, double[][] confidencesMatrix) throws Exception {
+        List<Callable<double[]>> tasks = new ArrayList<>(classifiersLength);
+        for (int c = 0; c < classifiersLength; c++) {
+            final int classifier = c;
+            tasks.add(new Callable<double[]>() {
+                @Override
+                public double[] call() throws Exception {
+                    return predictChain(classifier, instance);
+                }
+            });
+        }
+
+        List<Future<double[]>> futures = executor.invokeAll(tasks);
+        try {
+            for (int c = 0; c < classifiersLength; c++) {
+                confidencesMatrix[c] = futures.get(c).get();
+            }
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Fans the chains out over the executor, each writing its confidences into
+     * its own slots of the label-major columns
+     */
+    private void makePredictionsParallel(final ChainScoringEngine scoringEngine, final double[] features,
+            final double[] columns) throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<>(classifiersLength);
+        for (int c = 0; c < classifiersLength; c++) {
+            final int chain = c;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    scoreChain(scoringEngine, chain, features, columns);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the scoring engine of the classifiers, or null if they are not
+     * all classifier chains
+     */
+    private ChainScoringEngine scoringEngine() throws Exception {
+        if (engine == null && header != null && ChainScoringEngine.supports(classifiers)) {
+            engine = new ChainScoringEngine(classifiers, header, labelIndices);
+        }
+        return engine;
+    }
+
+    public MultiLabelOutput makePrediction(double[][] confidencesMatrix) {
+        boolean[] bipartition = new boolean[numLabels];
+
+        double[] confidences = new double[numLabels];
+        double[] columns = new double[numLabels * classifiersLength];
+        transpose(confidencesMatrix, columns);
+        if (combinedTemplates != null) {
+            combinedTemplates.scores(columns, 1, confidences);
+        }
+        for (int i = 0; i < numLabels; i++) {
+            confidences[i] = defined(combinedTemplates == null
+                    ? makePredictionIndividual(i, columns, i * classifiersLength) : confidences[i]);
+            bipartition[i] = confidences[i] > threshold(i);
+        }
+
+        return new MultiLabelOutput(bipartition, confidences);
+    }
+
+    /**
+     * Predicts a batch of instances. The classifiers are evaluated one at a
+     * time over the whole batch, into one flat confidences buffer, and the
+     * bipartition of the r-th instance is written to bipartitions[r].
+     *
+     * @param batch the instances to predict
+     * @param bipartitions the output, with at least batch.numInstances() rows
+     * of numLabels values
+     * @throws Exception if a classifier fails to predict an instance
+     */
+    public void makePredictions(Instances batch, boolean[][] bipartitions) throws Exception {
+        if (!isModelInitialized()) {
+            throw new ModelInitializationException("The model has not been trained.");
+        }
+        long t = metricsListener == null ? 0 : System.nanoTime();
+        makePredictions(computeConfidences(batch), batch.numInstances(), bipartitions);
+        if (metricsListener != null) {
+            metricsListener.predicted(batch.numInstances(), System.nanoTime() - t);
+        }
+    }
+
+    /**
+     * Predicts a batch of feature vectors. Each row holds the values of all the
+     * attributes of the training data, in the same order; the values at the
+     * label indices are ignored.
+     *
+     * @param features the rows to predict
+     * @param bipartitions the output, with at least features.length rows of
+     * numLabels values
+     * @throws Exception if a classifier fails to predict a row
+     */
+    public void makePredictions(double[][] features, boolean[][] bipartitions) throws Exception {
+        if (!isModelInitialized()) {
+            throw new ModelInitializationException("The model has not been trained.");
+        }
+        long t = metricsListener == null ? 0 : System.nanoTime();
+        makePredictions(computeConfidences(features, null), features.length, bipartitions);
+        if (metricsListener != null) {
+            metricsListener.predicted(features.length, System.nanoTime() - t);
+        }
+    }
+
+    /**
+     * Predicts the rows of a columnar dataset, in blocks of BATCH_BLOCK_SIZE
+     * rows, so that only one block of feature vectors is held at a time. The
+     * attributes of the dataset must be those of the training data, in the
+     * same order.
+     *
+     * @param data the rows to predict
+     * @param bipartitions the output, with at least data.numInstances() rows
+     * of numLabels values
+     * @throws Exception if a classifier fails to predict a row
+     */
+    public void makePredictions(ColumnarDataset data, boolean[][] bipartitions) throws Exception {
+        if (!isModelInitialized()) {
+            throw new ModelInitializationException("The model has not been trained.");
+        }
+        double[][] features = new double[Math.min(BATCH_BLOCK_SIZE, data.numInstances())][];
+        for (int start = 0; start < data.numInstances(); start += BATCH_BLOCK_SIZE) {
+            int size = Math.min(BATCH_BLOCK_SIZE, data.numInstances() - start);
+            double[][] block = size == features.length ? features : Arrays.copyOf(features, size);
+            for (int r = 0; r < size; r++) {
+                block[r] = data.features(start + r, block[r]);
+            }
+            long t = metricsListener == null ? 0 : System.nanoTime();
+            makePredictions(computeConfidences(block, null), size,
+                    Arrays.copyOfRange(bipartitions, start, start + size));
+            if (metricsListener != null) {
+                metricsListener.predicted(size, System.nanoTime() - t);
+            }
+        }
+    }
+
+    /**
+     * Returns the confidences of the classifiers for a batch of instances, in
+     * the flat layout read by {@link #makePredictions(double[], int, boolean[][])}.
+     * Templates built on the same classifiers can decide the batch from these
+     * confidences without evaluating the classifiers again.
+     */
+    double[] computeConfidences(Instances batch) throws Exception {
+        Instance[] rows = new Instance[batch.numInstances()];
+        for (int r = 0; r < rows.length; r++) {
+            rows[r] = batch.instance(r);
+        }
+        return computeConfidences(null, rows);
+    }
+
+    /**
+     * Batch counterpart of {@link #makePrediction(double[][])}. The confidences
+     * of the r-th instance are the classifiersLength x numLabels block starting
+     * at r * classifiersLength * numLabels, one row per classifier.
+     *
+     * @param confidences the flat confidences of the batch
+     * @param numInstances the number of instances in the batch
+     * @param bipartitions the output, with at least numInstances rows of
+     * numLabels values
+     */
+    public void makePredictions(double[] confidences, int numInstances, boolean[][] bipartitions) {
+        if (combinedTemplates != null) {
+            double[][] scores = new double[numInstances][numLabels];
+            makeCombinedConfidences(confidences, numInstances, scores);
+            for (int r = 0; r < numInstances; r++) {
+                for (int i = 0; i < numLabels; i++) {
+                    bipartitions[r][i] = scores[r][i] > threshold(i);
+                }
+            }
+            return;
+        }
+        int stride = classifiersLength * numLabels;
+        if (quantizedTemplates != null) {
+            byte[] quantized = new byte[stride];
+            for (int r = 0; r < numInstances; r++) {
+                transposeQuantized(confidences, r * stride, quantized);
+                for (int i = 0; i < numLabels; i++) {
+                    bipartitions[r][i] = makePredictionQuantized(i, quantized, i * classifiersLength) > threshold(i);
+                }
+            }
+            return;
+        }
+        double[] columns = new double[stride];
+        for (int r = 0; r < numInstances; r++) {
+            transpose(confidences, r * stride, columns);
+            for (int i = 0; i < numLabels; i++) {
+                bipartitions[r][i] = makePredictionIndividual(i, columns, i * classifiersLength) > threshold(i);
+            }
+        }
+    }
+
+    /**
+     * Computes the template confidences of a batch, from the flat confidences
+     * of the classifiers laid out as in
+     * {@link #makePredictions(double[], int, boolean[][])}. A label is predicted
+     * when its template confidence is above its threshold, so thresholds can be
+     * tried on these without evaluating the classifiers again. Labels without
+     * templates get a template confidence of 0.
+     *
+     * @param confidences the flat confidences of the batch
+     * @param numInstances the number of instances in the batch
+     * @param templateConfidences the output, with at least numInstances rows of
+     * numLabels values
+     */
+    public void makeTemplateConfidences(double[] confidences, int numInstances, double[][] templateConfidences) {
+        if (combinedTemplates != null) {
+            makeCombinedConfidences(confidences, numInstances, templateConfidences);
+            return;
+        }
+        int stride = classifiersLength * numLabels;
+        if (quantizedTemplates != null) {
+            byte[] quantized = new byte[stride];
+            for (int r = 0; r < numInstances; r++) {
+                transposeQuantized(confidences, r * stride, quantized);
+                for (int i = 0; i < numLabels; i++) {
+                    templateConfidences[r][i] = defined(makePredictionQuantized(i, quantized, i * classifiersLength));
+                }
+            }
+            return;
+        }
+        double[] columns = new double[stride];
+        for (int r = 0; r < numInstances; r++) {
+            transpose(confidences, r * stride, columns);
+            for (int i = 0; i < numLabels; i++) {
+                templateConfidences[r][i] = defined(makePredictionIndividual(i, columns, i * classifiersLength));
+            }
+        }
+    }
+
+    /**
+     * Computes the template confidences of a batch with the combined
+     * templates, transposing CombinedTemplates.ROW_BLOCK rows at a time so
+     * that the templates are streamed once per block
+     */
+    private void makeCombinedConfidences(double[] confidences, int numInstances, double[][] templateConfidences) {
+        int stride = classifiersLength * numLabels;
+        int blockSize = CombinedTemplates.ROW_BLOCK;
+        double[] columns = new double[blockSize * stride];
+        double[] scores = new double[blockSize * numLabels];
+        for (int first = 0; first < numInstances; first += blockSize) {
+            int rows = Math.min(blockSize, numInstances - first);
+            for (int r = 0; r < rows; r++) {
+                transpose(confidences, (first + r) * stride, columns, r * stride);
+            }
+            combinedTemplates.scores(columns, rows, scores);
+            for (int r = 0; r < rows; r++) {
+                for (int i = 0; i < numLabels; i++) {
+                    templateConfidences[first + r][i] = defined(scores[r * numLabels + i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets confThreshold to the threshold, among the given ones, that maximizes
+     * the example-based F-measure on a validation set. The classifiers are
+     * evaluated once, and every threshold is tried on the cached template
+     * confidences in a single pass over the instances.
+     *
+     * @param validation the validation set
+     * @param thresholds the thresholds to try
+     * @return the chosen threshold
+     * @throws Exception if a classifier fails to predict an instance
+     */
+    public double tuneThreshold(MultiLabelInstances validation, double[] thresholds) throws Exception {
+        int numInstances = validation.getNumInstances();
+        double[][] scores = new double[numInstances][numLabels];
+        makeTemplateConfidences(computeConfidences(validation.getDataSet()), numInstances, scores);
+
+        double[] fMeasures = new double[thresholds.length];
+        LabelMatrix labels = LabelMatrix.decode(validation.getDataSet(), validation.getLabelIndices());
+        boolean[] trueLabels = new boolean[numLabels];
+        for (int r = 0; r < numInstances; r++) {
+            labels.row(r, trueLabels);
+            for (int t = 0; t < thresholds.length; t++) {
+                fMeasures[t] += fMeasure(scores[r], thresholds[t], trueLabels);
+            }
+        }
+
+        int best = 0;
+        for (int t = 1; t < thresholds.length; t++) {
+            if (fMeasures[t] > fMeasures[best]) {
+                best = t;
+            }
+        }
+        confThreshold = thresholds[best];
+        labelThresholds = null;
+        exitBounds = null;
+        return confThreshold;
+    }
+
+    /**
+     * Sets a threshold per label, choosing among the given ones the threshold
+     * that maximizes the F-measure of each label on a validation set. The
+     * classifiers are evaluated once, and every threshold of every label is
+     * tried on the cached template confidences in a single pass.
+     *
+     * @param validation the validation set
+     * @param thresholds the thresholds to try
+     * @return the chosen threshold of each label
+     * @throws Exception if a classifier fails to predict an instance
+     */
+    public double[] tuneLabelThresholds(MultiLabelInstances validation, double[] thresholds) throws Exception {
+        int numInstances = validation.getNumInstances();
+        double[][] scores = new double[numInstances][numLabels];
+        makeTemplateConfidences(computeConfidences(validation.getDataSet()), numInstances, scores);
+
+        // true positives, false positives and false negatives per label and threshold
+        int[][] tp = new int[numLabels][thresholds.length];
+        int[][] fp = new int[numLabels][thresholds.length];
+        int[][] fn = new int[numLabels][thresholds.length];
+        LabelMatrix labels = LabelMatrix.decode(validation.getDataSet(), validation.getLabelIndices());
+        boolean[] trueLabels = new boolean[numLabels];
+        for (int r = 0; r < numInstances; r++) {
+            labels.row(r, trueLabels);
+            for (int i = 0; i < numLabels; i++) {
+                for (int t = 0; t < thresholds.length; t++) {
+                    boolean predicted = scores[r][i] > thresholds[t];
+                    if (predicted && trueLabels[i]) {
+                        tp[i][t]++;
+                    } else if (predicted) {
+                        fp[i][t]++;
+                    } else if (trueLabels[i]) {
+                        fn[i][t]++;
+                    }
+                }
+            }
+        }
+
+        double[] chosen = new double[numLabels];
+        for (int i = 0; i < numLabels; i++) {
+            int best = 0;
+            double bestF = -1;
+            for (int t = 0; t < thresholds.length; t++) {
+                int denominator = 2 * tp[i][t] + fp[i][t] + fn[i][t];
+                double f = denominator == 0 ? 1 : 2.0 * tp[i][t] / denominator;
+                if (f > bestF) {
+                    bestF = f;
+                    best = t;
+                }
+            }
+            chosen[i] = thresholds[best];
+        }
+        labelThresholds = chosen;
+        exitBounds = null;
+        return chosen;
+    }
+
+    /**
+     * Chooses a subset of the classifiers whose templates keep the
+     * example-based F-measure on a validation set within a tolerance of that
+     * of all the classifiers. Classifiers are added greedily, each time the
+     * one that gives the highest F-measure together with those already
+     * chosen, the L1 distances of the chosen ones being kept as running sums
+     * per instance and label, so each step only adds the distances of the
+     * candidates. The templates and thresholds of this model are used as they
+     * are, since the templates of a classifier do not depend on the others.
+     * Quantized templates are compared with the quantized confidences, as in
+     * prediction.
+     *
+     * @param confidences the confidences of the classifiers on the validation
+     * set, laid out as in {@link #makePredictions(double[], int, boolean[][])}
+     * @param numInstances the number of validation instances
+     * @param trueLabels the true labels of each validation instance
+     * @param tolerance the loss of F-measure allowed
+     * @return the indices of the chosen classifiers, in increasing order
+     */
+    int[] selectClassifiers(double[] confidences, int numInstances, boolean[][] trueLabels, double tolerance) {
+        if (combinedTemplates != null) {
+            throw new UnsupportedOperationException("Only individual templates can be pruned.");
+        }
+        double target = meanFMeasure(confidences, numInstances, trueLabels) - tolerance;
+        double[] values;
+        if (quantizedTemplates != null) {
+            // the bytes of makePredictionQuantized as doubles: the distances
+            // are sums of integers, exact in double precision, so the template
+            // confidences are those of prediction
+            values = new double[quantizedTemplates.length];
+            for (int k = 0; k < values.length; k++) {
+                values[k] = undefinedTemplates[k / classifiersLength] ? Double.NaN : quantizedTemplates[k] & 0xFF;
+            }
+            double[] quantized = new double[confidences.length];
+            for (int k = 0; k < quantized.length; k++) {
+                quantized[k] = quantize(confidences[k]) & 0xFF;
+            }
+            confidences = quantized;
+        } else {
+            values = templateValues();
+        }
+        int[] offsets = new int[numLabels];
+        for (int i = 0; i < numLabels; i++) {
+            offsets[i] = templateOffset(i);
+        }
+        int stride = classifiersLength * numLabels;
+        double[] positiveSums = new double[numInstances * numLabels];
+        double[] negativeSums = new double[numInstances * numLabels];
+        boolean[] predicted = new boolean[numLabels];
+
+        boolean[] chosen = new boolean[classifiersLength];
+        int numChosen = 0;
+        double best = Double.NEGATIVE_INFINITY;
+        while (numChosen < classifiersLength && (numChosen == 0 || best < target)) {
+            int bestClassifier = -1;
+            best = Double.NEGATIVE_INFINITY;
+            for (int c = 0; c < classifiersLength; c++) {
+                if (chosen[c]) {
+                    continue;
+                }
+                double sum = 0;
+                for (int r = 0; r < numInstances; r++) {
+                    for (int i = 0; i < numLabels; i++) {
+                        if (offsets[i] < 0) {
+                            predicted[i] = false;
+                            continue;
+                        }
+                        double confidence = confidences[r * stride + c * numLabels + i];
+                        int positive = offsets[i] + c;
+                        double dPos = positiveSums[r * numLabels + i] + Math.abs(confidence - values[positive]);
+                        double dNeg = negativeSums[r * numLabels + i] + Math.abs(confidence - values[positive + classifiersLength]);
+                        predicted[i] = 1 - dPos / (dPos + dNeg) > threshold(i);
+                    }
+                    sum += fMeasure(predicted, trueLabels[r]);
+                }
+                double mean = numInstances == 0 ? 1 : sum / numInstances;
+                if (bestClassifier < 0 || mean > best) {
+                    best = mean;
+                    bestClassifier = c;
+                }
+            }
+            chosen[bestClassifier] = true;
+            numChosen++;
+            for (int r = 0; r < numInstances; r++) {
+                for (int i = 0; i < numLabels; i++) {
+                    if (offsets[i] < 0) {
+                        continue;
+                    }
+                    double confidence = confidences[r * stride + bestClassifier * numLabels + i];
+                    int positive = offsets[i] + bestClassifier;
+                    positiveSums[r * numLabels + i] += Math.abs(confidence - values[positive]);
+                    negativeSums[r * numLabels + i] += Math.abs(confidence - values[positive + classifiersLength]);
+                }
+            }
+        }
+
+        int[] kept = new int[numChosen];
+        for (int c = 0, k = 0; c < classifiersLength; c++) {
+            if (chosen[c]) {
+                kept[k++] = c;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Returns the mean example-based F-measure of the bipartitions of a batch
+     *
+     * @param confidences the confidences of the classifiers on the batch,
+     * laid out as in {@link #makePredictions(double[], int, boolean[][])}
+     * @param numInstances the number of instances in the batch
+     * @param trueLabels the true labels of each instance
+     * @return the mean F-measure, or 1 for an empty batch
+     */
+    double meanFMeasure(double[] confidences, int numInstances, boolean[][] trueLabels) {
+        double[][] scores = new double[numInstances][numLabels];
+        makeTemplateConfidences(confidences, numInstances, scores);
+        boolean[] predicted = new boolean[numLabels];
+        double sum = 0;
+        for (int r = 0; r < numInstances; r++) {
+            for (int i = 0; i < numLabels; i++) {
+                predicted[i] = scores[r][i] > threshold(i);
+            }
+            sum += fMeasure(predicted, trueLabels[r]);
+        }
+        return numInstances == 0 ? 1 : sum / numInstances;
+    }
+
+    /**
+     * Appends the classifiers of another model, with their templates, to the
+     * classifiers of this one. The other model must have been built on the
+     * same labels; since the templates of each classifier are computed from
+     * its own confidences alone, the result is the model that building the
+     * templates on all the classifiers would give. The thresholds of this
+     * model are kept, and the chain order of the early-exit prediction is
+     * learned again.
+     *
+     * @param added the model holding the new classifiers
+     */
+    void appendClassifiers(MLDT added) {
+        if (combinedTemplates != null || added.combinedTemplates != null) {
+            throw new UnsupportedOperationException("Classifiers cannot be appended to combined templates.");
+        }
+        if (added.numLabels != numLabels || !Arrays.equals(added.templateLabels, templateLabels)) {
+            throw new IllegalArgumentException("The templates of the new classifiers are not built on the same labels.");
+        }
+        double[] values = templateValues();
+        double[] addedValues = added.templateValues();
+        int numAdded = added.classifiersLength;
+        int length = classifiersLength + numAdded;
+        double[] merged = new double[numTemplateLabels() * 2 * length];
+        // each positive and negative template gets the values of the new
+        // classifiers after those of the existing ones
+        for (int template = 0; template < 2 * numTemplateLabels(); template++) {
+            System.arraycopy(values, template * classifiersLength, merged, template * length, classifiersLength);
+            System.arraycopy(addedValues, template * numAdded, merged, template * length + classifiersLength, numAdded);
         }
+        MultiLabelLearner[] mergedClassifiers = Arrays.copyOf(classifiers, length);
+        System.arraycopy(added.classifiers, 0, mergedClassifiers, classifiersLength, numAdded);
 
-        public boolean makePrediction(double[][] confidencesMatrix) {
-            double euclidPositiveDist = 0;
-            double euclidNegativeDist = 0;
+        classifiers = mergedClassifiers;
+        classifiersLength = length;
+        templates = merged;
+        mappedTemplates = null;
+        mappedFloatTemplates = null;
+        floatTemplates = null;
+        quantizedTemplates = null;
+        engine = null;
+        chainOrder = null;
+        exitBounds = null;
+        applyPrecision();
+    }
+
+    /**
+     * Appends the confidences of new classifiers on a batch to those of the
+     * existing ones, both laid out as in
+     * {@link #makePredictions(double[], int, boolean[][])}
+     *
+     * @param confidences the confidences of the existing classifiers
+     * @param numClassifiers the number of existing classifiers
+     * @param added the confidences of the new classifiers
+     * @param numAdded the number of new classifiers
+     * @param numInstances the number of instances in the batch
+     * @param numLabels the number of labels
+     * @return the confidences of all the classifiers
+     */
+    static double[] appendConfidences(double[] confidences, int numClassifiers, double[] added, int numAdded,
+            int numInstances, int numLabels) {
+        int stride = numClassifiers * numLabels;
+        int addedStride = numAdded * numLabels;
+        double[] merged = new double[numInstances * (stride + addedStride)];
+        for (int r = 0; r < numInstances; r++) {
+            System.arraycopy(confidences, r * stride, merged, r * (stride + addedStride), stride);
+            System.arraycopy(added, r * addedStride, merged, r * (stride + addedStride) + stride, addedStride);
+        }
+        return merged;
+    }
+
+    /**
+     * Keeps only the given classifiers, with their templates. Since the
+     * templates of each classifier are computed from its own confidences
+     * alone, the result is the model that building the templates on those
+     * classifiers would give, without evaluating them on the training data
+     * again. The chain order of the early-exit prediction is learned again.
+     *
+     * @param kept the indices of the classifiers to keep, in the order they
+     * are to be stored
+     */
+    void retainClassifiers(int[] kept) {
+        double[] values = templateValues();
+        double[] retained = new double[numTemplateLabels() * 2 * kept.length];
+        MultiLabelLearner[] retainedClassifiers = new MultiLabelLearner[kept.length];
+        for (int k = 0; k < kept.length; k++) {
+            retainedClassifiers[k] = classifiers[kept[k]];
+            // i runs over the slots of the templates
+            for (int i = 0; i < numTemplateLabels(); i++) {
+                retained[i * 2 * kept.length + k] = values[i * 2 * classifiersLength + kept[k]];
+                retained[i * 2 * kept.length + kept.length + k] = values[i * 2 * classifiersLength + classifiersLength + kept[k]];
+            }
+        }
+        classifiers = retainedClassifiers;
+        classifiersLength = kept.length;
+        templates = retained;
+        mappedTemplates = null;
+        mappedFloatTemplates = null;
+        floatTemplates = null;
+        quantizedTemplates = null;
+        engine = null;
+        chainOrder = null;
+        exitBounds = null;
+        applyPrecision();
+    }
+
+    /**
+     * Example-based F-measure of one instance given its predicted labels. An
+     * instance with no true and no predicted labels scores 1.
+     */
+    static double fMeasure(boolean[] predictedLabels, boolean[] trueLabels) {
+        int intersection = 0;
+        int predicted = 0;
+        int actual = 0;
+        for (int j = 0; j < trueLabels.length; j++) {
+            if (predictedLabels[j]) {
+                predicted++;
+                if (trueLabels[j]) {
+                    intersection++;
+                }
+            }
+            if (trueLabels[j]) {
+                actual++;
+            }
+        }
+        return predicted + actual == 0 ? 1 : 2.0 * intersection / (predicted + actual);
+    }
+
+    /**
+     * Example-based F-measure of one instance, predicting the labels whose
+     * template confidence is above the threshold. An instance with no true and
+     * no predicted labels scores 1.
+     */
+    static double fMeasure(double[] templateConfidences, double threshold, boolean[] trueLabels) {
+        int intersection = 0;
+        int predicted = 0;
+        int actual = 0;
+        for (int j = 0; j < trueLabels.length; j++) {
+            if (templateConfidences[j] > threshold) {
+                predicted++;
+                if (trueLabels[j]) {
+                    intersection++;
+                }
+            }
+            if (trueLabels[j]) {
+                actual++;
+            }
+        }
+        return predicted + actual == 0 ? 1 : 2.0 * intersection / (predicted + actual);
+    }
+
+    private double threshold(int index) {
+        return labelThresholds == null ? confThreshold : labelThresholds[index];
+    }
+
+    /**
+     * Copies a classifiersLength x numLabels confidences matrix into
+     * label-major order, so that the confidences of the classifiers for label
+     * i are columns[i * classifiersLength + c]
+     */
+    private void transpose(double[][] confidencesMatrix, double[] columns) {
+        for (int c = 0; c < classifiersLength; c++) {
+            double[] row = confidencesMatrix[c];
+            for (int i = 0; i < numLabels; i++) {
+                columns[i * classifiersLength + c] = row[i];
+            }
+        }
+    }
+
+    private void transpose(double[] confidences, int offset, double[] columns) {
+        transpose(confidences, offset, columns, 0);
+    }
+
+    private void transpose(double[] confidences, int offset, double[] columns, int columnsOffset) {
+        for (int c = 0; c < classifiersLength; c++) {
+            int row = offset + c * numLabels;
+            for (int i = 0; i < numLabels; i++) {
+                columns[columnsOffset + i * classifiersLength + c] = confidences[row + i];
+            }
+        }
+    }
+
+    /**
+     * Transposes as transpose does, quantizing the confidences, so that the
+     * buffer of an instance takes one byte per confidence
+     */
+    private void transposeQuantized(double[] confidences, int offset, byte[] columns) {
+        for (int c = 0; c < classifiersLength; c++) {
+            int row = offset + c * numLabels;
+            for (int i = 0; i < numLabels; i++) {
+                columns[i * classifiersLength + c] = quantize(confidences[row + i]);
+            }
+        }
+    }
+
+    //INDIVIDUAL PREDICTION TYPE
+    /**
+     * Computes the template confidence of label index, 1 - dPos / (dPos +
+     * dNeg), from the confidences of the classifiers for that label, stored
+     * contiguously from columnOffset. Both L1 distances are accumulated in one
+     * pass over contiguous arrays, which the JIT can vectorize.
+     */
+    private double makePredictionIndividual(int index, double[] columns, int columnOffset) {
+        int positive = templateOffset(index);
+        if (positive < 0) {
+            return Double.NaN;
+        }
+        int negative = positive + classifiersLength;
+        double euclidPositiveDist = 0;
+        double euclidNegativeDist = 0;
+
+        if (templates != null) {
+            for (int c = 0; c < classifiersLength; c++) {
+                double confidence = columns[columnOffset + c];
+                euclidPositiveDist += Math.abs(confidence - templates[positive + c]);
+                euclidNegativeDist += Math.abs(confidence - templates[negative + c]);
+            }
+        } else if (floatTemplates != null) {
+            for (int c = 0; c < classifiersLength; c++) {
+                double confidence = columns[columnOffset + c];
+                euclidPositiveDist += Math.abs(confidence - floatTemplates[positive + c]);
+                euclidNegativeDist += Math.abs(confidence - floatTemplates[negative + c]);
+            }
+        } else if (quantizedTemplates != null) {
+            if (undefinedTemplates[positive / classifiersLength] || undefinedTemplates[negative / classifiersLength]) {
+                return Double.NaN;
+            }
+            int positiveDist = 0;
+            int negativeDist = 0;
+            for (int c = 0; c < classifiersLength; c++) {
+                int confidence = quantize(columns[columnOffset + c]) & 0xFF;
+                positiveDist += Math.abs(confidence - (quantizedTemplates[positive + c] & 0xFF));
+                negativeDist += Math.abs(confidence - (quantizedTemplates[negative + c] & 0xFF));
+            }
+            return 1 - ((double) positiveDist / (positiveDist + negativeDist));
+        } else if (mappedTemplates != null) {
+            for (int c = 0; c < classifiersLength; c++) {
+                double confidence = columns[columnOffset + c];
+                euclidPositiveDist += Math.abs(confidence - mappedTemplates.get(positive + c));
+                euclidNegativeDist += Math.abs(confidence - mappedTemplates.get(negative + c));
+            }
+        } else {
+            for (int c = 0; c < classifiersLength; c++) {
+                double confidence = columns[columnOffset + c];
+                euclidPositiveDist += Math.abs(confidence - mappedFloatTemplates.get(positive + c));
+                euclidNegativeDist += Math.abs(confidence - mappedFloatTemplates.get(negative + c));
+            }
+        }
+        return 1 - (euclidPositiveDist / (euclidPositiveDist + euclidNegativeDist));
+    }
+
+    /**
+     * Returns a template confidence as reported to the caller: 0 in place of
+     * NaN, which is what a label without templates, e.g. one never relevant in
+     * the training set, scores. NaN is not above any threshold and 0 is not
+     * above any threshold in [0,1], so the decisions do not change.
+     */
+    private static double defined(double confidence) {
+        return Double.isNaN(confidence) ? 0 : confidence;
+    }
+
+    /**
+     * Quantized counterpart of makePredictionIndividual, for confidences
+     * already quantized by transposeQuantized: the L1 distances to the
+     * quantized templates are summed as integers. The scale cancels out in
+     * the ratio, and the result is NaN, as in double precision, when a
+     * template of the label is NaN.
+     */
+    private double makePredictionQuantized(int index, byte[] columns, int columnOffset) {
+        int positive = templateOffset(index);
+        if (positive < 0) {
+            return Double.NaN;
+        }
+        int negative = positive + classifiersLength;
+        if (undefinedTemplates[positive / classifiersLength] || undefinedTemplates[negative / classifiersLength]) {
+            return Double.NaN;
+        }
+        int positiveDist = 0;
+        int negativeDist = 0;
+        for (int c = 0; c < classifiersLength; c++) {
+            int confidence = columns[columnOffset + c] & 0xFF;
+            positiveDist += Math.abs(confidence - (quantizedTemplates[positive + c] & 0xFF));
+            negativeDist += Math.abs(confidence - (quantizedTemplates[negative + c] & 0xFF));
+        }
+        return 1 - ((double) positiveDist / (positiveDist + negativeDist));
+    }
+
+    /**
+     * Quantizes a confidence, clamped to [0,1], to an unsigned byte
+     */
+    static byte quantize(double value) {
+        double scaled = value * QUANTIZATION_SCALE + 0.5;
+        // NaN fails both tests and truncates to 0
+        return (byte) (scaled >= QUANTIZATION_SCALE ? QUANTIZATION_SCALE : scaled > 0 ? (int) scaled : 0);
+    }
+
+    private double dequantize(int index) {
+        if (undefinedTemplates[index / classifiersLength]) {
+            return Double.NaN;
+        }
+        return (double) (quantizedTemplates[index] & 0xFF) / QUANTIZATION_SCALE;
+    }
+
+    /**
+     * Moves the templates to the storage of the current precision, from
+     * whichever storage holds them. Templates mapped in single precision are
+     * kept mapped when the precision is FLOAT.
+     */
+    private void applyPrecision() {
+        if (precision == Precision.DOUBLE) {
+            if (floatTemplates != null || quantizedTemplates != null) {
+                templates = templateValues();
+                floatTemplates = null;
+                quantizedTemplates = null;
+                undefinedTemplates = null;
+                exitBounds = null;
+            }
+            return;
+        }
+        if (precision == Precision.FLOAT ? floatTemplates != null || mappedFloatTemplates != null
+                : quantizedTemplates != null) {
+            return;
+        }
+        double[] values = templateValues();
+        if (values == null) {
+            return;
+        }
+        if (precision == Precision.FLOAT) {
+            floatTemplates = new float[values.length];
+            for (int k = 0; k < values.length; k++) {
+                floatTemplates[k] = (float) values[k];
+            }
+            quantizedTemplates = null;
+            undefinedTemplates = null;
+        } else {
+            quantizedTemplates = new byte[values.length];
+            undefinedTemplates = new boolean[2 * numTemplateLabels()];
+            for (int k = 0; k < values.length; k++) {
+                quantizedTemplates[k] = quantize(values[k]);
+                if (Double.isNaN(values[k])) {
+                    undefinedTemplates[k / classifiersLength] = true;
+                }
+            }
+            floatTemplates = null;
+        }
+        templates = null;
+        mappedTemplates = null;
+        mappedFloatTemplates = null;
+        exitBounds = null;
+    }
+
+    /**
+     * Returns a copy of the templates, in their flat label-major layout
+     */
+    double[] templateValues() {
+        if (templates != null) {
+            return templates.clone();
+        }
+        if (mappedTemplates == null && mappedFloatTemplates == null && floatTemplates == null
+                && quantizedTemplates == null) {
+            return null;
+        }
+        double[] values = new double[numTemplateLabels() * 2 * classifiersLength];
+        for (int k = 0; k < values.length; k++) {
+            values[k] = templateValue(k);
+        }
+        return values;
+    }
+
+    /**
+     * Replaces the templates with ones read in place from a mapped model file,
+     * in double precision
+     */
+    void setMappedTemplates(DoubleBuffer mapped) {
+        checkTemplatesLength(mapped.capacity());
+        templates = null;
+        floatTemplates = null;
+        quantizedTemplates = null;
+        mappedFloatTemplates = null;
+        mappedTemplates = mapped;
+        exitBounds = null;
+        applyPrecision();
+    }
 
-            for (int i = 0; i < classifiersLength; i++) {
-                for (int j = 0; (j < numLabels) && (j < confidencesMatrix[i].length); j++) {
-                    euclidPositiveDist += Math.abs(confidencesMatrix[i][j] - positiveMatrix[i][j]);
-                    euclidNegativeDist += Math.abs(confidencesMatrix[i][j] - negativeMatrix[i][j]);
+    /**
+     * Replaces the templates with ones read in place from a mapped model file,
+     * in single precision
+     */
+    void setMappedTemplates(FloatBuffer mapped) {
+        checkTemplatesLength(mapped.capacity());
+        templates = null;
+        floatTemplates = null;
+        quantizedTemplates = null;
+        mappedTemplates = null;
+        mappedFloatTemplates = mapped;
+        exitBounds = null;
+        applyPrecision();
+    }
+
+    private void checkTemplatesLength(int length) {
+        if (length != numTemplateLabels() * 2 * classifiersLength) {
+            throw new IllegalArgumentException("Expected " + numTemplateLabels() * 2 * classifiersLength + " template values, found " + length);
+        }
+    }
+
+    int getClassifiersLength() {
+        return classifiersLength;
+    }
+
+    /**
+     * Returns the attributes of the training data, without rows, in the order
+     * the feature vectors predicted in batch must follow. Must not be
+     * modified.
+     *
+     * @return the header of the training data, or null before the model is
+     * trained
+     */
+    public Instances getHeader() {
+        return header;
+    }
+
+    /**
+     * Returns the indices of the labels among the attributes of the training
+     * data, in the order of the bipartitions
+     *
+     * @return the label indices, or null before the model is trained
+     */
+    public int[] getLabelIndices() {
+        return labelIndices == null ? null : labelIndices.clone();
+    }
+
+    /**
+     * Writes the templates after the other fields, as a plain array whatever
+     * their storage, except in a model file where they are stored apart
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(out instanceof MLDTModelFile.TemplateFreeOutputStream ? null : templateValues());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        templates = (double[]) in.readObject();
+        if (precision == null) {
+            precision = Precision.DOUBLE;
+        }
+        applyPrecision();
+    }
+
+    /**
+     * Evaluates the classifiers one at a time over all the rows, given either
+     * as feature vectors or as instances, writing the confidences of
+     * classifier c for row r at (r * classifiersLength + c) * numLabels. With
+     * an executor each task evaluates one classifier, so no classifier is used
+     * by two threads at once.
+     */
+    private double[] computeConfidences(double[][] features, Instance[] rows) throws Exception {
+        final ChainScoringEngine scoringEngine = scoringEngine();
+        int numInstances = features != null ? features.length : rows.length;
+        if (scoringEngine != null && features == null) {
+            features = new double[numInstances][];
+            for (int r = 0; r < numInstances; r++) {
+                features[r] = rows[r].toDoubleArray();
+            }
+        } else if (scoringEngine == null && rows == null) {
+            rows = new Instance[numInstances];
+            for (int r = 0; r < numInstances; r++) {
+                rows[r] = new DenseInstance(1.0, features[r]);
+                rows[r].setDataset(header);
+            }
+        }
+        final double[][] batchFeatures = features;
+        final Instance[] batchRows = rows;
+        final double[] confidences = new double[numInstances * classifiersLength * numLabels];
+
+        if (executor == null || classifiersLength < parallelCutoff) {
+            for (int c = 0; c < classifiersLength; c++) {
+                computeConfidences(c, scoringEngine, batchFeatures, batchRows, confidences);
+            }
+            return confidences;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>(classifiersLength);
+        for (int c = 0; c < classifiersLength; c++) {
+            final int classifier = c;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    computeConfidences(classifier, scoringEngine, batchFeatures, batchRows, confidences);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
+        }
+        return confidences;
+    }
+
+    private void computeConfidences(int c, ChainScoringEngine scoringEngine, double[][] features, Instance[] rows,
+            double[] confidences) throws Exception {
+        int numInstances = scoringEngine != null ? features.length : rows.length;
+        EnsembleMetricsListener listener = metricsListener;
+        long t = listener == null ? 0 : System.nanoTime();
+        for (int r = 0; r < numInstances; r++) {
+            int offset = (r * classifiersLength + c) * numLabels;
+            if (scoringEngine != null) {
+                scoringEngine.score(c, features[r], confidences, offset, 1);
+            } else {
+                double[] confidencesForInstance = classifiers[c].makePrediction(rows[r]).getConfidences();
+                System.arraycopy(confidencesForInstance, 0, confidences, offset, numLabels);
+            }
+        }
+        if (listener != null) {
+            listener.chainScored(c, numInstances, System.nanoTime() - t);
+        }
+    }
+
+    /**
+     * Multilabel Decision Template builder using the Binary Relevance approach.
+     * The positive and negative templates of all the labels that have
+     * templates are accumulated in one flat array, laid out like the templates: running sums in mean mode,
+     * and a median sketch per cell in median mode. The combined templates, when
+     * set, are summed in their own tensor. Calls for different
+     * classifiers touch disjoint cells, so they can run on different threads.
+     *
+     */
+    private class MLDTBR {
+
+        private final int[] posivitesCount = new int[numTemplateLabels()];
+        private final int[] negativesCount = new int[numTemplateLabels()];
+        private final double[] sums = new double[numTemplateLabels() * 2 * classifiersLength];
+        private final MedianSketch[] medians;
+        private final CombinedTemplates combinedTemplates = combined ? new CombinedTemplates(numLabels, classifiersLength) : null;
+
+        /**
+         * @param labelCounts the number of training instances each label is
+         * relevant to
+         * @param numInstances the number of training instances
+         */
+        public MLDTBR(int[] labelCounts, int numInstances) {
+            for (int s = 0; s < posivitesCount.length; s++) {
+                int label = templateLabels == null ? s : templateLabels[s];
+                posivitesCount[s] = labelCounts[label];
+                negativesCount[s] = numInstances - labelCounts[label];
+            }
+            if (useMedian) {
+                medians = new MedianSketch[sums.length];
+                for (int i = 0; i < medians.length; i++) {
+                    medians[i] = new MedianSketch(medianErrorBound);
+                }
+            } else {
+                medians = null;
+            }
+        }
+
+        /**
+         * Adds the confidences of one classifier for one training instance to
+         * the positive or negative template of each label that has templates
+         */
+        public void addColumn(int classifier, double[] confidences, LabelMatrix trueLabels, int row) {
+            int cell = classifier;
+            for (int s = 0; s < posivitesCount.length; s++) {
+                int label = templateLabels == null ? s : templateLabels[s];
+                int index = trueLabels.get(row, label) ? cell : cell + classifiersLength;
+                sums[index] += confidences[label];
+                if (medians != null) {
+                    medians[index].add(confidences[label]);
+                }
+                cell += 2 * classifiersLength;
+            }
+            if (combinedTemplates != null) {
+                combinedTemplates.addColumn(classifier, classifiersLength, confidences, trueLabels.row(row, new boolean[numLabels]));
+            }
+        }
+
+        /**
+         * Writes the positive and negative templates of all the labels into
+         * the flat templates
+         */
+        public void computeTemplates(double[] templates) {
+            for (int i = 0; i < posivitesCount.length; i++) {
+                int positive = i * 2 * classifiersLength;
+                int negative = positive + classifiersLength;
+                for (int c = 0; c < classifiersLength; c++) {
+                    if (useMedian) {
+                        templates[positive + c] = medians[positive + c].median();
+                        templates[negative + c] = medians[negative + c].median();
+                    } else {
+                        templates[positive + c] = sums[positive + c] / posivitesCount[i];
+                        templates[negative + c] = sums[negative + c] / negativesCount[i];
+                    }
+                }
+            }
+            if (combinedTemplates != null) {
+                combinedTemplates.divide(posivitesCount, negativesCount);
+            }
+        }
+
+    }
+
+    /**
+     * Median of a stream of confidences in [0,1]. The values are kept in a
+     * primitive array, and the median found by quickselect, until there are
+     * more than EXACT_MEDIAN_LIMIT of them. They are then folded into a
+     * histogram of numBins = ceil(1 / errorBound) bins of width 1 / numBins,
+     * and later values only update the bin counts, so memory stays bounded
+     * whatever the number of values.
+     * <p>
+     * The median is the middle order statistic of the values, or the mean of
+     * the two middle ones for an even count. The histogram tells which bin
+     * holds each of them, and each is estimated inside its bin, so it is off
+     * by at most the bin width; so is their mean. The median of a histogram
+     * is thus within 1 / numBins <= errorBound of the exact median.
+     */
+    static class MedianSketch {
+
+        private final int numBins;
+        private double[] values = new double[16];
+        private int[] bins;
+        private int count = 0;
+
+        public MedianSketch(double errorBound) {
+            numBins = errorBound > 0 ? (int) Math.ceil(1 / errorBound) : 0;
+        }
+
+        public void add(double value) {
+            if (bins != null) {
+                bins[bin(value)]++;
+            } else {
+                if (count == values.length) {
+                    if (numBins > 0 && count >= EXACT_MEDIAN_LIMIT) {
+                        toHistogram();
+                        bins[bin(value)]++;
+                        count++;
+                        return;
+                    }
+                    values = Arrays.copyOf(values, 2 * count);
                 }
+                values[count] = value;
             }
+            count++;
+        }
 
-            double conf = 1 - (euclidPositiveDist / (euclidPositiveDist + euclidNegativeDist));
+        private int bin(double value) {
+            int bin = (int) (value * numBins);
+            return Math.max(0, Math.min(numBins - 1, bin));
+        }
 
-            return conf > confThreshold;
+        private void toHistogram() {
+            bins = new int[numBins];
+            for (int i = 0; i < count; i++) {
+                bins[bin(values[i])]++;
+            }
+            values = null;
         }
 
-        //INDIVIDUAL PREDICTION TYPE
-        public boolean makePredictionIndividual(int index, double[][] confidencesMatrix) {
-            double euclidPositiveDist = 0;
-            double euclidNegativeDist = 0;
+        public double median() {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            if (bins != null) {
+                return histogramMedian();
+            }
+            int middle = count / 2;
+            double medianValue = select(values, count, middle);
+            if (count % 2 == 0) {
+                // after selection the lower half is left of middle
+                double lower = values[0];
+                for (int i = 1; i < middle; i++) {
+                    lower = Math.max(lower, values[i]);
+                }
+                medianValue = (lower + medianValue) / 2;
+            }
+            return medianValue;
+        }
 
-            for (int i = 0; i < classifiersLength; i++) {
-                euclidPositiveDist += Math.abs(confidencesMatrix[i][index] - positiveMatrix[i][index]);
-                euclidNegativeDist += Math.abs(confidencesMatrix[i][index] - negativeMatrix[i][index]);
+        /**
+         * Averages the two middle order statistics, the same one for an odd
+         * count, each interpolated within the bin that holds it
+         */
+        private double histogramMedian() {
+            return (orderStatistic((count + 1) / 2) + orderStatistic(count / 2 + 1)) / 2;
+        }
+
+        /**
+         * Estimates the k-th smallest value, k from 1 to count, by spreading
+         * the values of its bin evenly over the bin
+         */
+        private double orderStatistic(int k) {
+            int below = 0;
+            for (int b = 0; b < numBins; b++) {
+                if (below + bins[b] >= k) {
+                    return (b + (k - below - 0.5) / bins[b]) / numBins;
+                }
+                below += bins[b];
             }
-            double conf = 1 - (euclidPositiveDist / (euclidPositiveDist + euclidNegativeDist));
+            return 1;
+        }
 
-            return conf > confThreshold;
+        /**
+         * Partially sorts the first length values so that values[k] is the
+         * k-th smallest, smaller values left of it and larger ones right of it
+         */
+        private static double select(double[] values, int length, int k) {
+            int left = 0;
+            int right = length - 1;
+            while (left < right) {
+                double pivot = values[(left + right) >>> 1];
+                int i = left;
+                int j = right;
+                while (i <= j) {
+                    while (values[i] < pivot) {
+                        i++;
+                    }
+                    while (values[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        double temp = values[i];
+                        values[i] = values[j];
+                        values[j] = temp;
+                        i++;
+                        j--;
+                    }
+                }
+                if (k <= j) {
+                    right = j;
+                } else if (k >= i) {
+                    left = i;
+                } else {
+                    break;
+                }
+            }
+            return values[k];
         }
+    }
+
+    /**
+     * Evaluation order of the classifiers for the early-exit prediction, and
+     * for each label the lowest and highest sum of the terms of the
+     * classifiers from the k-th in order onwards, at
+     * i * (classifiersLength + 1) + k
+     */
+    private static class ExitBounds {
 
+        private int[] order;
+        private double[] lower;
+        private double[] upper;
     }
 
     /*Debug only*/
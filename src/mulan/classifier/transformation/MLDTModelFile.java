@@ -0,0 +1,224 @@
+package mulan.classifier.transformation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import mulan.classifier.MultiLabelLearner;
+
+/**
+ * Binary model files for MLDT and EnsembleOfClassifierChainsDT, whose decision
+ * templates are memory-mapped when the model is loaded.
+ * <p>
+ * A file starts with a 64 byte little-endian header:
+ * <pre>
+ *  0  int   magic "MLDT"
+ *  4  int   format version
+ *  8  int   model kind: 1 for MLDT, 2 for EnsembleOfClassifierChainsDT
+ * 12  int   bytes per template value: 8 (double) or 4 (float)
+ * 16  int   number of labels with templates, all of them unless the
+ *           model was built with sparse labels
+ * 20  int   number of classifiers
+ * 24  long  offset of the model section
+ * 32  long  length of the model section
+ * 40  long  offset of the templates
+ * </pre>
+ * The model section is the Java serialization of the model without its
+ * templates, that is the trained chains and the layout of the labels. The
+ * templates follow on a page boundary, as numLabels * 2 * numClassifiers
+ * little-endian values in the label-major layout of MLDT.
+ * <p>
+ * The loader deserializes the model section and maps the templates read-only,
+ * so they are read in place, off the heap, and processes loading the same file
+ * share a single copy in the page cache. Since the model section is Java
+ * serialization, only trusted files should be loaded.
+ * <p>
+ * Only individual templates in double or single precision are stored:
+ * combined templates would be serialized into the model section, and
+ * quantized templates would be copied back to the heap on load.
+ */
+public final class MLDTModelFile {
+
+    public static final int VERSION = 1;
+    /**
+     * "MLDT" read as a little-endian int
+     */
+    private static final int MAGIC = 0x54444C4D;
+    private static final int HEADER_SIZE = 64;
+    private static final int ALIGNMENT = 4096;
+    private static final int KIND_MLDT = 1;
+    private static final int KIND_ENSEMBLE = 2;
+
+    /**
+     * Serializes a model leaving out the decision templates, which the file
+     * stores apart
+     */
+    static class TemplateFreeOutputStream extends ObjectOutputStream {
+
+        TemplateFreeOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+    }
+
+    private MLDTModelFile() {
+    }
+
+    /**
+     * Writes a trained MLDT to a model file
+     *
+     * @param model the model
+     * @param file the file, overwritten if it exists
+     * @param singlePrecision whether to store the templates as floats, which
+     * halves their size but rounds them
+     * @throws IOException if the model has not been trained or the file cannot
+     * be written
+     * @throws UnsupportedOperationException if the model has combined or
+     * quantized templates
+     */
+    public static void write(MLDT model, File file, boolean singlePrecision) throws IOException {
+        write(model, KIND_MLDT, model, file, singlePrecision);
+    }
+
+    /**
+     * Writes a trained EnsembleOfClassifierChainsDT to a model file
+     *
+     * @param model the model
+     * @param file the file, overwritten if it exists
+     * @param singlePrecision whether to store the templates as floats, which
+     * halves their size but rounds them
+     * @throws IOException if the model has not been trained or the file cannot
+     * be written
+     * @throws UnsupportedOperationException if the model has combined or
+     * quantized templates
+     */
+    public static void write(EnsembleOfClassifierChainsDT model, File file, boolean singlePrecision) throws IOException {
+        write(model, KIND_ENSEMBLE, model.getDecisionTemplate(), file, singlePrecision);
+    }
+
+    private static void write(MultiLabelLearner model, int kind, MLDT decisionTemplate, File file,
+            boolean singlePrecision) throws IOException {
+        double[] templates = decisionTemplate == null ? null : decisionTemplate.templateValues();
+        if (templates == null) {
+            throw new IOException("The model has not been trained.");
+        }
+        if (decisionTemplate.getCombined()) {
+            throw new UnsupportedOperationException("Combined templates cannot be written to a model file.");
+        }
+        if (decisionTemplate.getPrecision() == MLDT.Precision.QUANTIZED) {
+            throw new UnsupportedOperationException("Quantized templates cannot be written to a model file.");
+        }
+        int numClassifiers = decisionTemplate.getClassifiersLength();
+        int numLabels = templates.length / (2 * numClassifiers);
+        int valueSize = singlePrecision ? 4 : 8;
+
+        ByteArrayOutputStream modelBytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new TemplateFreeOutputStream(modelBytes)) {
+            out.writeObject(model);
+        }
+        long modelOffset = HEADER_SIZE;
+        long templatesOffset = (modelOffset + modelBytes.size() + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(kind).putInt(valueSize).putInt(numLabels).putInt(numClassifiers);
+        header.putLong(modelOffset).putLong(modelBytes.size()).putLong(templatesOffset);
+        header.clear();
+
+        ByteBuffer values = ByteBuffer.allocate(templates.length * valueSize).order(ByteOrder.LITTLE_ENDIAN);
+        for (double value : templates) {
+            if (singlePrecision) {
+                values.putFloat((float) value);
+            } else {
+                values.putDouble(value);
+            }
+        }
+        values.flip();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header, 0);
+            writeFully(channel, ByteBuffer.wrap(modelBytes.toByteArray()), modelOffset);
+            writeFully(channel, values, templatesOffset);
+        }
+    }
+
+    /**
+     * Loads a model file. The result is an MLDT or an
+     * EnsembleOfClassifierChainsDT, according to what was written, whose
+     * templates stay mapped for the life of the model. Updating the templates
+     * of a loaded model copies them to the heap first.
+     *
+     * @param file the file
+     * @return the model
+     * @throws IOException if the file is not a model file of a supported
+     * version or cannot be read
+     * @throws ClassNotFoundException if a class of the model section is not
+     * on the class path
+     */
+    public static MultiLabelLearner read(File file) throws IOException, ClassNotFoundException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file + " is not an MLDT model file");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported model file version " + version + " in " + file);
+            }
+            int kind = header.getInt();
+            int valueSize = header.getInt();
+            int numLabels = header.getInt();
+            int numClassifiers = header.getInt();
+            long modelOffset = header.getLong();
+            long modelLength = header.getLong();
+            long templatesOffset = header.getLong();
+            if ((kind != KIND_MLDT && kind != KIND_ENSEMBLE) || (valueSize != 8 && valueSize != 4)
+                    || modelLength > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt header in " + file);
+            }
+
+            ByteBuffer modelBytes = ByteBuffer.allocate((int) modelLength);
+            readFully(channel, modelBytes, modelOffset);
+            MultiLabelLearner model;
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(modelBytes.array()))) {
+                model = (MultiLabelLearner) in.readObject();
+            }
+            MLDT decisionTemplate = kind == KIND_ENSEMBLE
+                    ? ((EnsembleOfClassifierChainsDT) model).getDecisionTemplate() : (MLDT) model;
+
+            long length = (long) numLabels * 2 * numClassifiers * valueSize;
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, templatesOffset, length);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (valueSize == 8) {
+                decisionTemplate.setMappedTemplates(mapped.asDoubleBuffer());
+            } else {
+                decisionTemplate.setMappedTemplates(mapped.asFloatBuffer());
+            }
+            return model;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of model file");
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package mulan.data;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Serializable;
+import java.util.Arrays;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ArffLoader;
+
+/**
+ * A dataset stored as one primitive array per attribute, plus the weights of
+ * the rows. Values are kept as Weka stores them in an Instance: numeric values
+ * as is, nominal values as the index of the value, and missing values as NaN.
+ * <p>
+ * Large ARFF files, dense or sparse, can be read row by row with
+ * {@link #read(Reader)}, without ever holding the rows as Instance objects,
+ * and read back as feature vectors for scoring. Only numeric and nominal
+ * attributes are supported.
+ */
+public class ColumnarDataset implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final Instances header;
+    private double[][] columns;
+    private double[] weights;
+    private int numInstances;
+
+    /**
+     * Creates an empty dataset
+     *
+     * @param structure the attributes of the dataset; its rows are ignored
+     * @param capacity the number of rows to allocate room for
+     */
+    public ColumnarDataset(Instances structure, int capacity) {
+        for (int a = 0; a < structure.numAttributes(); a++) {
+            Attribute attribute = structure.attribute(a);
+            if (attribute.isString() || attribute.isRelationValued()) {
+                throw new IllegalArgumentException("Attribute " + attribute.name() + " is neither numeric nor nominal");
+            }
+        }
+        header = new Instances(structure, 0);
+        columns = new double[structure.numAttributes()][Math.max(capacity, 1)];
+        weights = new double[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Reads an ARFF file, dense or sparse, one row at a time
+     *
+     * @param reader the reader of the file
+     * @return the dataset
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public static ColumnarDataset read(Reader reader) throws IOException {
+        ArffLoader.ArffReader arff = new ArffLoader.ArffReader(reader, 1);
+        Instances structure = arff.getStructure();
+        ColumnarDataset data = new ColumnarDataset(structure, 1024);
+        Instance instance;
+        while ((instance = arff.readInstance(structure)) != null) {
+            data.add(instance);
+        }
+        data.trim();
+        return data;
+    }
+
+    /**
+     * Copies a dataset held as Instances
+     *
+     * @param instances the rows
+     * @return the dataset
+     */
+    public static ColumnarDataset copyOf(Instances instances) {
+        ColumnarDataset data = new ColumnarDataset(instances, instances.numInstances());
+        for (int r = 0; r < instances.numInstances(); r++) {
+            data.add(instances.instance(r));
+        }
+        return data;
+    }
+
+    /**
+     * Appends a row. Absent values of a sparse instance are stored as 0.
+     *
+     * @param instance the row, with the attributes of this dataset
+     */
+    public void add(Instance instance) {
+        if (numInstances == weights.length) {
+            int capacity = 2 * numInstances;
+            for (int a = 0; a < columns.length; a++) {
+                columns[a] = Arrays.copyOf(columns[a], capacity);
+            }
+            weights = Arrays.copyOf(weights, capacity);
+        }
+        int row = numInstances++;
+        for (int p = 0; p < instance.numValues(); p++) {
+            columns[instance.index(p)][row] = instance.valueSparse(p);
+        }
+        weights[row] = instance.weight();
+    }
+
+    /**
+     * Releases the room allocated beyond the last row
+     */
+    public void trim() {
+        if (numInstances < weights.length) {
+            int capacity = Math.max(numInstances, 1);
+            for (int a = 0; a < columns.length; a++) {
+                columns[a] = Arrays.copyOf(columns[a], capacity);
+            }
+            weights = Arrays.copyOf(weights, capacity);
+        }
+    }
+
+    /**
+     * Returns the attributes of the dataset, without rows. Must not be
+     * modified.
+     *
+     * @return the header
+     */
+    public Instances header() {
+        return header;
+    }
+
+    public int numInstances() {
+        return numInstances;
+    }
+
+    public int numAttributes() {
+        return columns.length;
+    }
+
+    public double value(int row, int attribute) {
+        return columns[attribute][row];
+    }
+
+    public double weight(int row) {
+        return weights[row];
+    }
+
+    /**
+     * Returns the values of an attribute. Only the first numInstances()
+     * values are rows of the dataset. Must not be modified.
+     *
+     * @param attribute the index of the attribute
+     * @return the column of the attribute
+     */
+    public double[] column(int attribute) {
+        return columns[attribute];
+    }
+
+    /**
+     * Copies the values of all the attributes of a row into a feature vector
+     *
+     * @param row the index of the row
+     * @param features the vector to fill, or null to allocate one
+     * @return the feature vector
+     */
+    public double[] features(int row, double[] features) {
+        if (features == null) {
+            features = new double[columns.length];
+        }
+        for (int a = 0; a < columns.length; a++) {
+            features[a] = columns[a][row];
+        }
+        return features;
+    }
+}
@@ -0,0 +1,174 @@
+package mulan.data;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+/**
+ * The true labels of the rows of a dataset, decoded once. A label is relevant
+ * when the index of its value is that of the value "1". Each row is held as a
+ * bitset, for constant-time tests, and as the sorted int array of its relevant
+ * labels, so that rows with a handful of relevant labels among thousands are
+ * iterated in the time of their relevant labels.
+ * <p>
+ * Sparse instances, as read from sparse ARFF files, are decoded from their
+ * stored values only; a label whose value is not stored has the value of
+ * index 0, usually "0".
+ */
+public final class LabelMatrix implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final int numRows;
+    private final int numLabels;
+    private final int words;
+    /**
+     * Bit l of row r is bit (l % 64) of bits[r * words + l / 64]
+     */
+    private final long[] bits;
+    /**
+     * The relevant labels of row r are labels[starts[r]] to
+     * labels[starts[r + 1] - 1], in increasing order
+     */
+    private final int[] starts;
+    private final int[] labels;
+    private final int[] counts;
+
+    private LabelMatrix(int numRows, int numLabels, long[] bits, int[] starts, int[] labels, int[] counts) {
+        this.numRows = numRows;
+        this.numLabels = numLabels;
+        this.words = (numLabels + 63) / 64;
+        this.bits = bits;
+        this.starts = starts;
+        this.labels = labels;
+        this.counts = counts;
+    }
+
+    /**
+     * Decodes the labels of every row of a dataset
+     *
+     * @param data the dataset
+     * @param labelIndices the indices of the label attributes, in the order
+     * of the labels
+     * @return the decoded labels
+     */
+    public static LabelMatrix decode(Instances data, int[] labelIndices) {
+        int numRows = data.numInstances();
+        int numLabels = labelIndices.length;
+        int words = (numLabels + 63) / 64;
+
+        // index of the value "1" of each label, and the label of each attribute
+        int[] positiveValues = new int[numLabels];
+        int[] labelOf = new int[data.numAttributes()];
+        Arrays.fill(labelOf, -1);
+        long[] defaults = new long[words];
+        for (int l = 0; l < numLabels; l++) {
+            Attribute attribute = data.attribute(labelIndices[l]);
+            positiveValues[l] = attribute.indexOfValue("1");
+            labelOf[labelIndices[l]] = l;
+            if (positiveValues[l] == 0) {
+                defaults[l >>> 6] |= 1L << l;
+            }
+        }
+
+        long[] bits = new long[numRows * words];
+        int[] starts = new int[numRows + 1];
+        int[] labels = new int[Math.max(16, numRows)];
+        int[] counts = new int[numLabels];
+        int size = 0;
+        for (int r = 0; r < numRows; r++) {
+            Instance instance = data.instance(r);
+            int row = r * words;
+            if (instance instanceof SparseInstance) {
+                System.arraycopy(defaults, 0, bits, row, words);
+                for (int p = 0; p < instance.numValues(); p++) {
+                    int l = labelOf[instance.index(p)];
+                    if (l < 0) {
+                        continue;
+                    }
+                    if ((int) instance.valueSparse(p) == positiveValues[l]) {
+                        bits[row + (l >>> 6)] |= 1L << l;
+                    } else {
+                        bits[row + (l >>> 6)] &= ~(1L << l);
+                    }
+                }
+            } else {
+                for (int l = 0; l < numLabels; l++) {
+                    if ((int) instance.value(labelIndices[l]) == positiveValues[l]) {
+                        bits[row + (l >>> 6)] |= 1L << l;
+                    }
+                }
+            }
+
+            for (int w = 0; w < words; w++) {
+                long word = bits[row + w];
+                while (word != 0) {
+                    int l = (w << 6) + Long.numberOfTrailingZeros(word);
+                    if (size == labels.length) {
+                        labels = Arrays.copyOf(labels, 2 * size);
+                    }
+                    labels[size++] = l;
+                    counts[l]++;
+                    word &= word - 1;
+                }
+            }
+            starts[r + 1] = size;
+        }
+        return new LabelMatrix(numRows, numLabels, bits, starts, Arrays.copyOf(labels, size), counts);
+    }
+
+    public int numRows() {
+        return numRows;
+    }
+
+    public int numLabels() {
+        return numLabels;
+    }
+
+    /**
+     * Tells whether a label is relevant to a row
+     *
+     * @param row the row
+     * @param label the label
+     * @return whether the label is relevant
+     */
+    public boolean get(int row, int label) {
+        return (bits[row * words + (label >>> 6)] & (1L << label)) != 0;
+    }
+
+    /**
+     * Returns the relevant labels of a row
+     *
+     * @param row the row
+     * @return the relevant labels, in increasing order
+     */
+    public int[] relevantLabels(int row) {
+        return Arrays.copyOfRange(labels, starts[row], starts[row + 1]);
+    }
+
+    /**
+     * Writes the labels of a row as booleans
+     *
+     * @param row the row
+     * @param trueLabels the output, of numLabels values
+     * @return trueLabels
+     */
+    public boolean[] row(int row, boolean[] trueLabels) {
+        Arrays.fill(trueLabels, false);
+        for (int k = starts[row]; k < starts[row + 1]; k++) {
+            trueLabels[labels[k]] = true;
+        }
+        return trueLabels;
+    }
+
+    /**
+     * Returns the number of rows each label is relevant to
+     *
+     * @return the count of each label
+     */
+    public int[] labelCounts() {
+        return counts.clone();
+    }
+}
@@ -7,10 +7,15 @@ package mulan.experiments;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import mulan.classifier.transformation.EnsembleMetricsListener;
 import mulan.classifier.transformation.EnsembleOfClassifierChains;
 import mulan.classifier.transformation.EnsembleOfClassifierChainsDT;
+import mulan.classifier.transformation.MLDT;
 import mulan.data.MultiLabelInstances;
-import mulan.evaluation.Evaluator;
+import mulan.evaluation.Evaluation;
 import mulan.evaluation.MultipleEvaluation;
 import mulan.evaluation.measure.AverageMAE;
 import mulan.evaluation.measure.AveragePrecision;
@@ -49,16 +54,31 @@ public class DTECCExp {
     public static void main(String[] args) throws Exception {
         String arffFilename = Utils.getOption("arff", args); // e.g. -arff emotions.arff
         String xmlFilename = Utils.getOption("xml", args); // e.g. -xml emotions.xml
+        String threadsOption = Utils.getOption("threads", args); // e.g. -threads 8, folds run concurrently
+        int threads = threadsOption.isEmpty() ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threadsOption);
+        boolean fusion = Utils.getFlag("fusion", args); // train the chains once per fold and compare the fusions on them
+        String metrics = Utils.getOption("metrics", args); // e.g. -metrics summary, or -metrics jfr with JDK 11+
 
         MultiLabelInstances dataset = new MultiLabelInstances(arffFilename, xmlFilename);
 
         int ensembleSize = 50;
         
-        EnsembleOfClassifierChainsDT learnerDT =  new EnsembleOfClassifierChainsDT(new NaiveBayes(), ensembleSize, true);
+        EnsembleOfClassifierChainsDT learnerDT =  new EnsembleOfClassifierChainsDT(new NaiveBayes(), ensembleSize, true, true, MLDT.PredictionType.INDIVIDUAL);
         EnsembleOfClassifierChains learnerMV =  new EnsembleOfClassifierChains(new NaiveBayes(), ensembleSize, false, true);
         EnsembleOfClassifierChains learnerME =  new EnsembleOfClassifierChains(new NaiveBayes(), ensembleSize, true, true);
+        MetricsSummary summary = null;
+        if (metrics.equals("summary")) {
+            summary = new MetricsSummary();
+            learnerDT.setMetricsListener(summary);
+        } else if (metrics.equals("jfr")) {
+            // loaded by name so that the rest of the experiments build without jdk.jfr
+            learnerDT.setMetricsListener((EnsembleMetricsListener) Class.forName("mulan.experiments.JfrMetricsListener").getDeclaredConstructor().newInstance());
+        } else if (!metrics.isEmpty()) {
+            throw new IllegalArgumentException("Unknown metrics " + metrics + ", expected summary or jfr");
+        }
         
-        Evaluator eval = new Evaluator();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ParallelCrossValidator eval = new ParallelCrossValidator(pool);
         MultipleEvaluation results;
 
         int someFolds = 10;
@@ -96,11 +116,33 @@ public class DTECCExp {
         
         System.out.println("arffFilename;Learner;ExampleBasedAccuracy;ExampleBasedPrecision;ExampleBasedRecall;HammingLoss;SubsetAccuracy;ExampleBasedFMeasure;AverageMAE;AveragePrecision;AverageRMSE;Coverage;ErrorSetSize;ExampleBasedSpecificity;LogLoss;MacroFMeasure;MacroPrecision;MacroRecall;MacroSpecificity;MeanAveragePrecision;MeanSquaredError;MicroAUC;MicroFMeasure;MicroPrecision;MicroRecall;MicroSpecificity;OneError;RankingLoss;RootMeanSquaredError;");
         
-        results = eval.crossValidate(learnerMV, dataset, measures, someFolds);
-        System.out.println(arffFilename + ';' + learnerMV.getClass().getSimpleName() + "MV;" + results.toCSV());
-        results = eval.crossValidate(learnerME, dataset, measures, someFolds);
-        System.out.println(arffFilename + ';' + learnerME.getClass().getSimpleName() + "ME;" + results.toCSV());
-        results = eval.crossValidate(learnerDT, dataset, measures, someFolds);
-        System.out.println(arffFilename + ';' + learnerDT.getClass().getSimpleName() + "(S);" + results.toCSV());
+        try {
+            if (fusion) {
+                MLDT.PredictionType[] types = {MLDT.PredictionType.INDIVIDUAL, MLDT.PredictionType.COMBINED};
+                String[] schemes = FusionComparison.schemeNames(types);
+                MultipleEvaluation[] fusionResults = new FusionComparison(pool).crossValidate(learnerDT, types, dataset, measures, someFolds);
+                for (int s = 0; s < schemes.length; s++) {
+                    System.out.println(arffFilename + ';' + schemes[s] + ';' + fusionResults[s].toCSV());
+                }
+                return;
+            }
+
+            // the folds of all the learners share the pool, the results are printed in the usual order
+            List<Future<Evaluation>> foldsMV = eval.submit("MV", learnerMV, dataset, measures, someFolds);
+            List<Future<Evaluation>> foldsME = eval.submit("ME", learnerME, dataset, measures, someFolds);
+            List<Future<Evaluation>> foldsDT = eval.submit("DT", learnerDT, dataset, measures, someFolds);
+
+            results = ParallelCrossValidator.collect(foldsMV, dataset);
+            System.out.println(arffFilename + ';' + learnerMV.getClass().getSimpleName() + "MV;" + results.toCSV());
+            results = ParallelCrossValidator.collect(foldsME, dataset);
+            System.out.println(arffFilename + ';' + learnerME.getClass().getSimpleName() + "ME;" + results.toCSV());
+            results = ParallelCrossValidator.collect(foldsDT, dataset);
+            System.out.println(arffFilename + ';' + learnerDT.getClass().getSimpleName() + "(S);" + results.toCSV());
+        } finally {
+            pool.shutdownNow();
+            if (summary != null) {
+                summary.print(System.err);
+            }
+        }
     }
 }
@@ -0,0 +1,202 @@
+package mulan.experiments;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import mulan.classifier.MultiLabelOutput;
+import mulan.classifier.transformation.EnsembleOfClassifierChainsDT;
+import mulan.classifier.transformation.MLDT;
+import mulan.data.LabelMatrix;
+import mulan.data.MultiLabelInstances;
+import mulan.evaluation.Evaluation;
+import mulan.evaluation.GroundTruth;
+import mulan.evaluation.MultipleEvaluation;
+import mulan.evaluation.measure.Measure;
+import weka.core.Instances;
+
+/**
+ * Cross-validates several fusion schemes of an Ensemble of Classifier Chains
+ * on chains trained once per fold.
+ * <p>
+ * Every fold trains one copy of an EnsembleOfClassifierChainsDT, caches the
+ * output of each of its chains on the test fold, and evaluates every scheme
+ * from the cache: the majority vote (MV) and the mean confidence (ME) of
+ * EnsembleOfClassifierChains, and decision templates of each of the given
+ * prediction types, built over the same chains. All the schemes thus see the
+ * same chains, and differ only in the fusion. The folds are those of
+ * Evaluator.crossValidate, and run concurrently as in ParallelCrossValidator.
+ */
+public class FusionComparison {
+
+    private final ExecutorService executor;
+    private int seed = 1;
+
+    /**
+     * Creates a new instance
+     *
+     * @param executor the executor that runs the folds
+     */
+    public FusionComparison(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the seed used to shuffle the data before splitting it in folds, as
+     * Evaluator.setSeed
+     *
+     * @param seed the seed
+     */
+    public void setSeed(int seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Returns the names of the schemes compared for the given prediction
+     * types, in the order of the results of crossValidate
+     *
+     * @param types the prediction types of the decision templates
+     * @return the names of the schemes
+     */
+    public static String[] schemeNames(MLDT.PredictionType[] types) {
+        String[] names = new String[2 + types.length];
+        names[0] = "MV";
+        names[1] = "ME";
+        for (int t = 0; t < types.length; t++) {
+            names[2 + t] = "DT(" + types[t] + ")";
+        }
+        return names;
+    }
+
+    /**
+     * Cross-validates the fusion schemes
+     *
+     * @param learner the untrained ensemble whose chains are fused
+     * @param types the prediction types of the decision templates
+     * @param data the data
+     * @param measures the measures to compute on each fold
+     * @param numFolds the number of folds
+     * @return the evaluation of each scheme, in the order of schemeNames
+     * @throws Exception if a fold fails
+     */
+    public MultipleEvaluation[] crossValidate(EnsembleOfClassifierChainsDT learner, final MLDT.PredictionType[] types,
+            final MultiLabelInstances data, final List<Measure> measures, final int numFolds) throws Exception {
+        final Instances workingSet = new Instances(data.getDataSet());
+        workingSet.randomize(new Random(seed));
+        final AtomicInteger completed = new AtomicInteger();
+
+        List<Future<Evaluation[]>> folds = new ArrayList<>(numFolds);
+        for (int f = 0; f < numFolds; f++) {
+            final int fold = f;
+            final EnsembleOfClassifierChainsDT copy = (EnsembleOfClassifierChainsDT) learner.makeCopy();
+            folds.add(executor.submit(new Callable<Evaluation[]>() {
+                @Override
+                public Evaluation[] call() throws Exception {
+                    long t = System.nanoTime();
+                    MultiLabelInstances train = new MultiLabelInstances(workingSet.trainCV(numFolds, fold), data.getLabelsMetaData());
+                    MultiLabelInstances test = new MultiLabelInstances(workingSet.testCV(numFolds, fold), data.getLabelsMetaData());
+                    Evaluation[] evaluations = evaluateFold(copy, types, train, test, measures);
+                    System.err.println("fusion: fold " + (fold + 1) + "/" + numFolds + " done in "
+                            + (System.nanoTime() - t) / 1000000 + " ms (" + completed.incrementAndGet() + "/" + numFolds + ")");
+                    return evaluations;
+                }
+            }));
+        }
+
+        Evaluation[][] evaluations = new Evaluation[2 + types.length][numFolds];
+        try {
+            for (int f = 0; f < numFolds; f++) {
+                Evaluation[] fold = folds.get(f).get();
+                for (int s = 0; s < fold.length; s++) {
+                    evaluations[s][f] = fold[s];
+                }
+            }
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
+        }
+
+        MultipleEvaluation[] results = new MultipleEvaluation[evaluations.length];
+        for (int s = 0; s < results.length; s++) {
+            results[s] = new MultipleEvaluation(evaluations[s], data);
+            results[s].calculateStatistics();
+        }
+        return results;
+    }
+
+    /**
+     * Trains the chains on the training fold and evaluates every scheme on
+     * their cached outputs for the test fold
+     */
+    private static Evaluation[] evaluateFold(EnsembleOfClassifierChainsDT learner, MLDT.PredictionType[] types,
+            MultiLabelInstances train, MultiLabelInstances test, List<Measure> measures) throws Exception {
+        learner.build(train);
+        Instances testData = test.getDataSet();
+        int numInstances = testData.numInstances();
+        int numLabels = test.getNumLabels();
+        MultiLabelOutput[][] outputs = learner.makeChainPredictions(testData);
+        int numChains = numInstances == 0 ? 0 : outputs[0].length;
+
+        GroundTruth[] truths = new GroundTruth[numInstances];
+        MultiLabelOutput[][] fused = new MultiLabelOutput[2 + types.length][numInstances];
+        // the chain confidences in the flat layout read by MLDT
+        double[] confidences = new double[numInstances * numChains * numLabels];
+        LabelMatrix labels = LabelMatrix.decode(testData, test.getLabelIndices());
+        for (int r = 0; r < numInstances; r++) {
+            truths[r] = new GroundTruth(labels.row(r, new boolean[numLabels]));
+            int[] votes = new int[numLabels];
+            double[] sums = new double[numLabels];
+            for (int c = 0; c < numChains; c++) {
+                boolean[] bipartition = outputs[r][c].getBipartition();
+                double[] chainConfidences = outputs[r][c].getConfidences();
+                System.arraycopy(chainConfidences, 0, confidences, (r * numChains + c) * numLabels, numLabels);
+                for (int j = 0; j < numLabels; j++) {
+                    votes[j] += bipartition[j] ? 1 : 0;
+                    sums[j] += chainConfidences[j];
+                }
+            }
+            // as EnsembleOfClassifierChains without and with useConfidences
+            double[] voteConfidences = new double[numLabels];
+            double[] meanConfidences = new double[numLabels];
+            for (int j = 0; j < numLabels; j++) {
+                voteConfidences[j] = votes[j] / (double) numChains;
+                meanConfidences[j] = sums[j] / numChains;
+            }
+            fused[0][r] = new MultiLabelOutput(voteConfidences, 0.5);
+            fused[1][r] = new MultiLabelOutput(meanConfidences, 0.5);
+        }
+
+        for (int t = 0; t < types.length; t++) {
+            MLDT decisionTemplate = types[t] == learner.getPredictionType() ? learner.getDecisionTemplate()
+                    : learner.buildDecisionTemplate(types[t], learner.getThreshold(), train);
+            double[][] scores = new double[numInstances][numLabels];
+            boolean[][] bipartitions = new boolean[numInstances][numLabels];
+            decisionTemplate.makeTemplateConfidences(confidences, numInstances, scores);
+            decisionTemplate.makePredictions(confidences, numInstances, bipartitions);
+            for (int r = 0; r < numInstances; r++) {
+                fused[2 + t][r] = new MultiLabelOutput(bipartitions[r], scores[r]);
+            }
+        }
+
+        Evaluation[] evaluations = new Evaluation[fused.length];
+        for (int s = 0; s < fused.length; s++) {
+            List<Measure> schemeMeasures = new ArrayList<>(measures.size());
+            for (Measure measure : measures) {
+                schemeMeasures.add(measure.makeCopy());
+            }
+            for (int r = 0; r < numInstances; r++) {
+                for (Measure measure : schemeMeasures) {
+                    measure.update(fused[s][r], truths[r]);
+                }
+            }
+            evaluations[s] = new Evaluation(schemeMeasures, test);
+        }
+        return evaluations;
+    }
+}
@@ -0,0 +1,185 @@
+package mulan.experiments;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import mulan.classifier.transformation.EnsembleMetricsListener;
+
+/**
+ * Emits the metrics of EnsembleOfClassifierChainsDT as JDK Flight Recorder
+ * events, for example with -XX:StartFlightRecording=filename=dtecc.jfr.
+ * Requires JDK 11 or later, unlike the rest of the project, so this file is
+ * optional and only loaded by name.
+ * <p>
+ * The events of the scoring of each chain and the decision of each label are
+ * frequent and disabled by default; enable mulan.ChainScored and
+ * mulan.LabelDecided in the recording settings to get their latency
+ * histograms.
+ */
+public class JfrMetricsListener extends EnsembleMetricsListener {
+
+    @Name("mulan.ChainTrained")
+    @Label("Chain Trained")
+    @Category({"Mulan", "Training"})
+    @StackTrace(false)
+    static class ChainTrained extends Event {
+
+        @Label("Chain")
+        int chain;
+        @Label("Instances")
+        int instances;
+        @Label("Training Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long trainingTime;
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    @Name("mulan.EnsembleTrained")
+    @Label("Ensemble Trained")
+    @Category({"Mulan", "Training"})
+    @StackTrace(false)
+    static class EnsembleTrained extends Event {
+
+        @Label("Chains")
+        int chains;
+        @Label("Training Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long trainingTime;
+    }
+
+    @Name("mulan.TemplatesBuilt")
+    @Label("Templates Built")
+    @Category({"Mulan", "Training"})
+    @StackTrace(false)
+    static class TemplatesBuilt extends Event {
+
+        @Label("Chains")
+        int chains;
+        @Label("Labels")
+        int labels;
+        @Label("Instances")
+        int instances;
+        @Label("Building Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long buildingTime;
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    @Name("mulan.ChainScored")
+    @Label("Chain Scored")
+    @Category({"Mulan", "Prediction"})
+    @StackTrace(false)
+    @Enabled(false)
+    static class ChainScored extends Event {
+
+        @Label("Chain")
+        int chain;
+        @Label("Instances")
+        int instances;
+        @Label("Scoring Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long scoringTime;
+    }
+
+    @Name("mulan.LabelDecided")
+    @Label("Label Decided")
+    @Category({"Mulan", "Prediction"})
+    @StackTrace(false)
+    @Enabled(false)
+    static class LabelDecided extends Event {
+
+        @Label("Label")
+        int label;
+        @Label("Decision Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long decisionTime;
+    }
+
+    @Name("mulan.Predicted")
+    @Label("Predicted")
+    @Category({"Mulan", "Prediction"})
+    @StackTrace(false)
+    static class Predicted extends Event {
+
+        @Label("Instances")
+        int instances;
+        @Label("Prediction Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long predictionTime;
+    }
+
+    @Override
+    public void chainTrained(int chain, int numInstances, long nanos, long allocatedBytes) {
+        ChainTrained event = new ChainTrained();
+        if (event.isEnabled()) {
+            event.chain = chain;
+            event.instances = numInstances;
+            event.trainingTime = nanos;
+            event.allocated = allocatedBytes;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void ensembleTrained(int numChains, long nanos) {
+        EnsembleTrained event = new EnsembleTrained();
+        if (event.isEnabled()) {
+            event.chains = numChains;
+            event.trainingTime = nanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void templatesBuilt(int numChains, int numLabels, int numInstances, long nanos, long allocatedBytes) {
+        TemplatesBuilt event = new TemplatesBuilt();
+        if (event.isEnabled()) {
+            event.chains = numChains;
+            event.labels = numLabels;
+            event.instances = numInstances;
+            event.buildingTime = nanos;
+            event.allocated = allocatedBytes;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void chainScored(int chain, int numInstances, long nanos) {
+        ChainScored event = new ChainScored();
+        if (event.isEnabled()) {
+            event.chain = chain;
+            event.instances = numInstances;
+            event.scoringTime = nanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void labelDecided(int label, long nanos) {
+        LabelDecided event = new LabelDecided();
+        if (event.isEnabled()) {
+            event.label = label;
+            event.decisionTime = nanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void predicted(int numInstances, long nanos) {
+        Predicted event = new Predicted();
+        if (event.isEnabled()) {
+            event.instances = numInstances;
+            event.predictionTime = nanos;
+            event.commit();
+        }
+    }
+}
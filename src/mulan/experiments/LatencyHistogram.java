@@ -0,0 +1,61 @@
+package mulan.experiments;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with one bucket per power of two nanoseconds, bucket
+ * b counting the latencies in [2^b, 2^(b+1)). Recording is a single atomic
+ * increment, so it can be shared by any number of threads, and percentiles are
+ * upper bounds within a factor of two.
+ */
+class LatencyHistogram {
+
+    static final int BUCKETS = 64;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Counts one latency
+     *
+     * @param nanos the latency
+     */
+    void record(long nanos) {
+        counts.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, nanos)));
+    }
+
+    /**
+     * Adds the counts of this histogram to the given ones
+     *
+     * @param total the counts to add to, of BUCKETS values
+     * @return the given counts
+     */
+    long[] addTo(long[] total) {
+        for (int b = 0; b < BUCKETS; b++) {
+            total[b] += counts.get(b);
+        }
+        return total;
+    }
+
+    long percentile(double p) {
+        return percentile(addTo(new long[BUCKETS]), p);
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile of
+     * the counts, or 0 if they are all 0
+     */
+    static long percentile(long[] counts, double p) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        long target = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b];
+            if (seen >= target) {
+                return 1L << Math.min(62, b + 1);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,125 @@
+package mulan.experiments;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import mulan.classifier.transformation.EnsembleOfClassifierChainsDT;
+import mulan.classifier.transformation.MLDT;
+import mulan.data.MultiLabelInstances;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Compares the single instance prediction latency of the sequential, the
+ * parallel and the early-exit chain evaluation of EnsembleOfClassifierChainsDT.
+ *
+ * Usage: MLDTLatencyExp -arff emotions.arff -xml emotions.xml [-models 50]
+ * [-threads 8] [-cutoff 8] [-repeats 5]
+ */
+public class MLDTLatencyExp {
+
+    public static void main(String[] args) throws Exception {
+        String arffFilename = Utils.getOption("arff", args); // e.g. -arff emotions.arff
+        String xmlFilename = Utils.getOption("xml", args); // e.g. -xml emotions.xml
+        int ensembleSize = intOption("models", args, 50);
+        int threads = intOption("threads", args, Runtime.getRuntime().availableProcessors());
+        int cutoff = intOption("cutoff", args, 8);
+        int repeats = intOption("repeats", args, 5);
+
+        MultiLabelInstances dataset = new MultiLabelInstances(arffFilename, xmlFilename);
+        Instances train = dataset.getDataSet().trainCV(3, 0);
+        Instances test = dataset.getDataSet().testCV(3, 0);
+
+        EnsembleOfClassifierChainsDT learner = new EnsembleOfClassifierChainsDT(new NaiveBayes(), ensembleSize, true, true, MLDT.PredictionType.INDIVIDUAL);
+        learner.build(new MultiLabelInstances(train, dataset.getLabelsMetaData()));
+
+        System.out.println("arffFilename;Mode;Threads;Predictions;p50(ms);p99(ms);max(ms)");
+
+        long[] sequential = measure(learner, test, repeats);
+        System.out.println(arffFilename + ";sequential;1;" + report(sequential));
+
+        long[] earlyExit = measureEarlyExit(learner, test, dataset.getNumLabels(), repeats, ensembleSize);
+        System.out.println(arffFilename + ";early-exit;1;" + report(earlyExit));
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            learner.setPredictionExecutor(pool);
+            learner.setParallelPredictionCutoff(cutoff);
+            long[] parallel = measure(learner, test, repeats);
+            System.out.println(arffFilename + ";parallel;" + threads + ";" + report(parallel));
+        } finally {
+            learner.setPredictionExecutor(null);
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Predicts every test instance once to warm up, then repeats timing each
+     * prediction
+     */
+    private static long[] measure(EnsembleOfClassifierChainsDT learner, Instances test, int repeats) throws Exception {
+        for (int i = 0; i < test.numInstances(); i++) {
+            learner.makePrediction(test.instance(i));
+        }
+
+        long[] times = new long[repeats * test.numInstances()];
+        int k = 0;
+        for (int r = 0; r < repeats; r++) {
+            for (int i = 0; i < test.numInstances(); i++) {
+                long t = System.nanoTime();
+                learner.makePrediction(test.instance(i));
+                times[k++] = System.nanoTime() - t;
+            }
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    /**
+     * Times the early-exit predictions as measure does, and prints how many
+     * chains they evaluated and whether their bipartitions are those of the
+     * full evaluation
+     */
+    private static long[] measureEarlyExit(EnsembleOfClassifierChainsDT learner, Instances test, int numLabels,
+            int repeats, int ensembleSize) throws Exception {
+        boolean[] bipartition = new boolean[numLabels];
+        long evaluated = 0;
+        int mismatches = 0;
+        for (int i = 0; i < test.numInstances(); i++) {
+            evaluated += learner.makePredictionEarlyExit(test.instance(i), bipartition);
+            if (!Arrays.equals(bipartition, learner.makePrediction(test.instance(i)).getBipartition())) {
+                mismatches++;
+            }
+        }
+        System.err.println("early-exit: " + (double) evaluated / test.numInstances() + " of " + ensembleSize
+                + " chains evaluated per instance, " + mismatches + " bipartitions differ from the full evaluation");
+
+        long[] times = new long[repeats * test.numInstances()];
+        int k = 0;
+        for (int r = 0; r < repeats; r++) {
+            for (int i = 0; i < test.numInstances(); i++) {
+                long t = System.nanoTime();
+                learner.makePredictionEarlyExit(test.instance(i), bipartition);
+                times[k++] = System.nanoTime() - t;
+            }
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    private static String report(long[] sortedTimes) {
+        return sortedTimes.length + ";" + percentile(sortedTimes, 0.50) + ";" + percentile(sortedTimes, 0.99) + ";"
+                + sortedTimes[sortedTimes.length - 1] / 1e6;
+    }
+
+    private static double percentile(long[] sortedTimes, double p) {
+        int index = (int) Math.ceil(p * sortedTimes.length) - 1;
+        return sortedTimes[Math.max(0, index)] / 1e6;
+    }
+
+    private static int intOption(String flag, String[] args, int defaultValue) throws Exception {
+        String value = Utils.getOption(flag, args);
+        return value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,142 @@
+package mulan.experiments;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import mulan.classifier.transformation.EnsembleMetricsListener;
+
+/**
+ * Aggregates the metrics of EnsembleOfClassifierChainsDT in memory: totals of
+ * the training and template building phases, the size of the last ensemble
+ * trained, and latency histograms of the scoring of each chain and the
+ * decision of each label. The histograms have one bucket per power of two
+ * nanoseconds, so the reported percentiles are upper bounds within a factor
+ * of two. Thread-safe.
+ */
+public class MetricsSummary extends EnsembleMetricsListener {
+
+    private final AtomicLong chainsTrained = new AtomicLong();
+    private final AtomicLong trainingNanos = new AtomicLong();
+    private final AtomicLong trainingBytes = new AtomicLong();
+    private final AtomicInteger ensembleSize = new AtomicInteger();
+    private final AtomicLong templatesBuilt = new AtomicLong();
+    private final AtomicLong templateNanos = new AtomicLong();
+    private final AtomicLong templateBytes = new AtomicLong();
+    private final AtomicLong instancesPredicted = new AtomicLong();
+    private final AtomicLong predictionNanos = new AtomicLong();
+    private final ConcurrentMap<Integer, LatencyHistogram> chainHistograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, LatencyHistogram> labelHistograms = new ConcurrentHashMap<>();
+
+    @Override
+    public void chainTrained(int chain, int numInstances, long nanos, long allocatedBytes) {
+        chainsTrained.incrementAndGet();
+        trainingNanos.addAndGet(nanos);
+        trainingBytes.addAndGet(Math.max(0, allocatedBytes));
+    }
+
+    @Override
+    public void ensembleTrained(int numChains, long nanos) {
+        ensembleSize.set(numChains);
+    }
+
+    @Override
+    public void templatesBuilt(int numChains, int numLabels, int numInstances, long nanos, long allocatedBytes) {
+        templatesBuilt.incrementAndGet();
+        templateNanos.addAndGet(nanos);
+        templateBytes.addAndGet(Math.max(0, allocatedBytes));
+    }
+
+    @Override
+    public void chainScored(int chain, int numInstances, long nanos) {
+        record(chainHistograms, chain, nanos / Math.max(1, numInstances));
+    }
+
+    @Override
+    public void labelDecided(int label, long nanos) {
+        record(labelHistograms, label, nanos);
+    }
+
+    @Override
+    public void predicted(int numInstances, long nanos) {
+        instancesPredicted.addAndGet(numInstances);
+        predictionNanos.addAndGet(nanos);
+    }
+
+    private static void record(ConcurrentMap<Integer, LatencyHistogram> histograms, int key, long nanos) {
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram previous = histograms.putIfAbsent(key, histogram);
+            if (previous != null) {
+                histogram = previous;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Returns the scoring latency histogram of a chain, per instance
+     *
+     * @param chain the index of the chain
+     * @return the count of each bucket, bucket b holding the latencies in
+     * [2^b, 2^(b+1)) nanoseconds
+     */
+    public long[] chainHistogram(int chain) {
+        return toArray(chainHistograms.get(chain));
+    }
+
+    /**
+     * Returns the decision latency histogram of a label
+     *
+     * @param label the index of the label
+     * @return the count of each bucket, bucket b holding the latencies in
+     * [2^b, 2^(b+1)) nanoseconds
+     */
+    public long[] labelHistogram(int label) {
+        return toArray(labelHistograms.get(label));
+    }
+
+    private static long[] toArray(LatencyHistogram histogram) {
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        return histogram == null ? counts : histogram.addTo(counts);
+    }
+
+    /**
+     * Prints the totals and the p50 / p99 of the histograms, overall and per
+     * chain and label
+     *
+     * @param out the stream to print to
+     */
+    public void print(PrintStream out) {
+        long chains = Math.max(1, chainsTrained.get());
+        long builds = Math.max(1, templatesBuilt.get());
+        out.println("chains trained: " + chainsTrained.get() + ", mean " + trainingNanos.get() / chains / 1000000
+                + " ms and " + trainingBytes.get() / chains / 1024 + " KB allocated per chain");
+        out.println("ensemble size: " + ensembleSize.get());
+        out.println("templates built: " + templatesBuilt.get() + ", mean " + templateNanos.get() / builds / 1000000
+                + " ms and " + templateBytes.get() / builds / 1024 + " KB allocated per build");
+        out.println("instances predicted: " + instancesPredicted.get() + ", mean "
+                + predictionNanos.get() / Math.max(1, instancesPredicted.get()) + " ns per instance");
+        printHistograms(out, "chain", chainHistograms);
+        printHistograms(out, "label", labelHistograms);
+    }
+
+    private static void printHistograms(PrintStream out, String name, Map<Integer, LatencyHistogram> histograms) {
+        long[] all = new long[LatencyHistogram.BUCKETS];
+        Map<Integer, LatencyHistogram> sorted = new TreeMap<>(histograms);
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<Integer, LatencyHistogram> entry : sorted.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            histogram.addTo(all);
+            lines.append(name).append(' ').append(entry.getKey()).append(": p50 <= ").append(histogram.percentile(0.5))
+                    .append(" ns, p99 <= ").append(histogram.percentile(0.99)).append(" ns\n");
+        }
+        out.println(name + " latency: p50 <= " + LatencyHistogram.percentile(all, 0.5) + " ns, p99 <= "
+                + LatencyHistogram.percentile(all, 0.99) + " ns");
+        out.print(lines);
+    }
+}
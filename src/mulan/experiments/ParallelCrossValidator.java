@@ -0,0 +1,137 @@
+package mulan.experiments;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import mulan.classifier.MultiLabelLearner;
+import mulan.data.MultiLabelInstances;
+import mulan.evaluation.Evaluation;
+import mulan.evaluation.Evaluator;
+import mulan.evaluation.MultipleEvaluation;
+import mulan.evaluation.measure.Measure;
+import weka.core.Instances;
+
+/**
+ * Cross-validation with the folds run as concurrent tasks on an executor.
+ * <p>
+ * The folds are those of Evaluator.crossValidate: the data is shuffled once
+ * with the seed, every fold trains its own copy of the untrained learner, made
+ * with makeCopy, and is evaluated with its own copies of the measures. A fold
+ * shares no mutable state with the others, so the merged MultipleEvaluation is
+ * the same as the one of the sequential Evaluator whatever the order in which
+ * the folds finish. Folds of several learners can be submitted before
+ * collecting any of them, so that the learners also run concurrently.
+ */
+public class ParallelCrossValidator {
+
+    private final ExecutorService executor;
+    private int seed = 1;
+
+    /**
+     * Creates a new instance
+     *
+     * @param executor the executor that runs the folds
+     */
+    public ParallelCrossValidator(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the seed used to shuffle the data before splitting it in folds, as
+     * Evaluator.setSeed
+     *
+     * @param seed the seed
+     */
+    public void setSeed(int seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Cross-validates a learner and waits for all its folds
+     *
+     * @param name the name of the learner in the progress messages
+     * @param learner the untrained learner
+     * @param data the data
+     * @param measures the measures to compute on each fold
+     * @param numFolds the number of folds
+     * @return the evaluation of the folds
+     * @throws Exception if a fold fails
+     */
+    public MultipleEvaluation crossValidate(String name, MultiLabelLearner learner, MultiLabelInstances data,
+            List<Measure> measures, int numFolds) throws Exception {
+        return collect(submit(name, learner, data, measures, numFolds), data);
+    }
+
+    /**
+     * Submits the folds of a learner to the executor, without waiting for
+     * them. A message is printed to the standard error as each fold ends.
+     *
+     * @param name the name of the learner in the progress messages
+     * @param learner the untrained learner
+     * @param data the data
+     * @param measures the measures to compute on each fold
+     * @param numFolds the number of folds
+     * @return the evaluation of each fold, to be passed to collect
+     * @throws Exception if the learner cannot be copied
+     */
+    public List<Future<Evaluation>> submit(final String name, MultiLabelLearner learner, final MultiLabelInstances data,
+            final List<Measure> measures, final int numFolds) throws Exception {
+        final Instances workingSet = new Instances(data.getDataSet());
+        workingSet.randomize(new Random(seed));
+        final AtomicInteger completed = new AtomicInteger();
+
+        List<Future<Evaluation>> folds = new ArrayList<>(numFolds);
+        for (int f = 0; f < numFolds; f++) {
+            final int fold = f;
+            final MultiLabelLearner copy = learner.makeCopy();
+            folds.add(executor.submit(new Callable<Evaluation>() {
+                @Override
+                public Evaluation call() throws Exception {
+                    long t = System.nanoTime();
+                    MultiLabelInstances train = new MultiLabelInstances(workingSet.trainCV(numFolds, fold), data.getLabelsMetaData());
+                    MultiLabelInstances test = new MultiLabelInstances(workingSet.testCV(numFolds, fold), data.getLabelsMetaData());
+                    List<Measure> foldMeasures = new ArrayList<>(measures.size());
+                    for (Measure measure : measures) {
+                        foldMeasures.add(measure.makeCopy());
+                    }
+                    copy.build(train);
+                    Evaluation evaluation = new Evaluator().evaluate(copy, test, foldMeasures);
+                    System.err.println(name + ": fold " + (fold + 1) + "/" + numFolds + " done in "
+                            + (System.nanoTime() - t) / 1000000 + " ms (" + completed.incrementAndGet() + "/" + numFolds + ")");
+                    return evaluation;
+                }
+            }));
+        }
+        return folds;
+    }
+
+    /**
+     * Waits for the folds of a learner and merges them in fold order
+     *
+     * @param folds the folds returned by submit
+     * @param data the data
+     * @return the evaluation of the folds
+     * @throws Exception if a fold fails
+     */
+    public static MultipleEvaluation collect(List<Future<Evaluation>> folds, MultiLabelInstances data) throws Exception {
+        Evaluation[] evaluations = new Evaluation[folds.size()];
+        try {
+            for (int f = 0; f < evaluations.length; f++) {
+                evaluations[f] = folds.get(f).get();
+            }
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
+        }
+        MultipleEvaluation results = new MultipleEvaluation(evaluations, data);
+        results.calculateStatistics();
+        return results;
+    }
+}
@@ -0,0 +1,98 @@
+package mulan.experiments;
+
+import java.util.ArrayList;
+import java.util.List;
+import mulan.classifier.transformation.EnsembleOfClassifierChainsDT;
+import mulan.classifier.transformation.MLDT;
+import mulan.data.MultiLabelInstances;
+import mulan.evaluation.Evaluation;
+import mulan.evaluation.Evaluator;
+import mulan.evaluation.measure.ExampleBasedAccuracy;
+import mulan.evaluation.measure.ExampleBasedFMeasure;
+import mulan.evaluation.measure.HammingLoss;
+import mulan.evaluation.measure.MacroFMeasure;
+import mulan.evaluation.measure.Measure;
+import mulan.evaluation.measure.MicroFMeasure;
+import mulan.evaluation.measure.SubsetAccuracy;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Compares the decision templates of EnsembleOfClassifierChainsDT stored in
+ * double precision, in single precision and quantized to 8 bits. The ensemble
+ * is trained once; each reduced-precision copy predicts the same test set,
+ * and the experiment reports the size of the templates, how many label
+ * decisions and bipartitions flip against double precision, and the usual
+ * bipartition measures.
+ *
+ * Usage: PrecisionExp -arff emotions.arff -xml emotions.xml [-models 10]
+ */
+public class PrecisionExp {
+
+    public static void main(String[] args) throws Exception {
+        String arffFilename = Utils.getOption("arff", args); // e.g. -arff emotions.arff
+        String xmlFilename = Utils.getOption("xml", args); // e.g. -xml emotions.xml
+        String modelsOption = Utils.getOption("models", args); // e.g. -models 50
+        int ensembleSize = modelsOption.isEmpty() ? 10 : Integer.parseInt(modelsOption);
+
+        MultiLabelInstances dataset = new MultiLabelInstances(arffFilename, xmlFilename);
+        int numLabels = dataset.getNumLabels();
+        Instances train = dataset.getDataSet().trainCV(3, 0);
+        Instances test = dataset.getDataSet().testCV(3, 0);
+        MultiLabelInstances mlTest = new MultiLabelInstances(test, dataset.getLabelsMetaData());
+
+        EnsembleOfClassifierChainsDT learner = new EnsembleOfClassifierChainsDT(new NaiveBayes(), ensembleSize, true, true, MLDT.PredictionType.INDIVIDUAL);
+        learner.build(new MultiLabelInstances(train, dataset.getLabelsMetaData()));
+
+        List<Measure> measures = new ArrayList<>(6);
+        measures.add(new ExampleBasedAccuracy());
+        measures.add(new HammingLoss());
+        measures.add(new SubsetAccuracy());
+        measures.add(new ExampleBasedFMeasure());
+        measures.add(new MacroFMeasure(numLabels));
+        measures.add(new MicroFMeasure(numLabels));
+
+        System.out.println("arffFilename;Precision;TemplateBytes;FlippedDecisions;FlippedBipartitions;ExampleBasedAccuracy;HammingLoss;SubsetAccuracy;ExampleBasedFMeasure;MacroFMeasure;MicroFMeasure;");
+
+        boolean[][] reference = new boolean[test.numInstances()][numLabels];
+        learner.makePredictions(test, reference);
+        for (MLDT.Precision precision : MLDT.Precision.values()) {
+            EnsembleOfClassifierChainsDT copy = learner;
+            if (precision != MLDT.Precision.DOUBLE) {
+                copy = (EnsembleOfClassifierChainsDT) learner.makeCopy();
+                copy.setTemplatePrecision(precision);
+            }
+            boolean[][] bipartitions = new boolean[test.numInstances()][numLabels];
+            copy.makePredictions(test, bipartitions);
+            int flippedDecisions = 0;
+            int flippedBipartitions = 0;
+            for (int r = 0; r < bipartitions.length; r++) {
+                int flipped = 0;
+                for (int i = 0; i < numLabels; i++) {
+                    if (bipartitions[r][i] != reference[r][i]) {
+                        flipped++;
+                    }
+                }
+                flippedDecisions += flipped;
+                flippedBipartitions += flipped > 0 ? 1 : 0;
+            }
+
+            List<Measure> copyMeasures = new ArrayList<>(measures.size());
+            for (Measure measure : measures) {
+                copyMeasures.add(measure.makeCopy());
+            }
+            Evaluation evaluation = new Evaluator().evaluate(copy, mlTest, copyMeasures);
+            System.out.println(arffFilename + ';' + precision + ';' + templateBytes(precision, numLabels, ensembleSize) + ';'
+                    + flippedDecisions + ';' + flippedBipartitions + ';' + evaluation.toCSV());
+        }
+    }
+
+    /**
+     * Size of the individual templates, two per label of one value per chain
+     */
+    private static long templateBytes(MLDT.Precision precision, int numLabels, int ensembleSize) {
+        int valueBytes = precision == MLDT.Precision.DOUBLE ? 8 : precision == MLDT.Precision.FLOAT ? 4 : 1;
+        return 2L * numLabels * ensembleSize * valueBytes;
+    }
+}
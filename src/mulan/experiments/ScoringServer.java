@@ -0,0 +1,414 @@
+package mulan.experiments;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import mulan.classifier.MultiLabelLearner;
+import mulan.classifier.transformation.EnsembleOfClassifierChainsDT;
+import mulan.classifier.transformation.MLDT;
+import mulan.classifier.transformation.MLDTModelFile;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Serves the predictions of an EnsembleOfClassifierChainsDT, or of an MLDT,
+ * over HTTP, on the server built into the JDK.
+ * <p>
+ * POST /predict takes one feature vector per line, the comma-separated values
+ * of all the attributes of the training data in order: numeric values as is,
+ * nominal values as the index of the value, ? for a missing value; the values
+ * of the labels are ignored. It answers one line per vector, the
+ * comma-separated 0/1 bipartition. GET /stats answers the counters of the
+ * server.
+ * <p>
+ * Requests are put in a bounded queue, and a single scoring thread takes them
+ * out in micro-batches: it waits at most maxWait after the first request of a
+ * batch for others to arrive, up to maxBatchSize vectors, and predicts the
+ * whole batch with one pass over the chains. The model is only used by that
+ * thread, since the chains are not thread-safe. When the queue is full new
+ * requests are rejected at once with 503, so that overload shows as
+ * rejections instead of growing latency, and a request not scored within the
+ * request timeout is answered 504.
+ * <p>
+ * Each request holds a handler thread while it waits for its batch, so the
+ * handlers are a fixed pool of platform threads, sized with the queue: the
+ * build targets Java 8, and the virtual threads that would make a blocked
+ * handler cheap need JDK 21.
+ * <p>
+ * Usage: ScoringServer -model dtecc.model [-port 8080] [-threads 64]
+ * [-queue 1024] [-batch 256] [-wait 2] [-timeout 60000], the model being
+ * written by MLDTModelFile. The server listens on the loopback address only.
+ */
+public class ScoringServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private final MultiLabelLearner model;
+    private final int numAttributes;
+    private final int numLabels;
+    private final BlockingQueue<ScoringRequest> queue;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private long requestTimeoutMillis = 60000;
+    private HttpServer server;
+    private ExecutorService handlers;
+    private Thread scorer;
+    private volatile boolean running;
+    private long started;
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+
+    /**
+     * A request waiting in the queue, completed by the scoring thread
+     */
+    private static class ScoringRequest {
+
+        private final double[][] features;
+        private final long enqueued = System.nanoTime();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private boolean[][] bipartitions;
+        private Exception error;
+
+        ScoringRequest(double[][] features) {
+            this.features = features;
+        }
+    }
+
+    /**
+     * Creates a new server, which does not listen until started
+     *
+     * @param model the trained model, an EnsembleOfClassifierChainsDT or an
+     * MLDT
+     * @param queueCapacity the number of requests that can wait to be scored
+     * @param maxBatchSize the number of feature vectors after which a batch is
+     * scored without waiting further
+     * @param maxWaitMillis the longest time a batch waits for more requests
+     * after its first one
+     */
+    public ScoringServer(MultiLabelLearner model, int queueCapacity, int maxBatchSize, long maxWaitMillis) {
+        Instances header;
+        if (model instanceof EnsembleOfClassifierChainsDT) {
+            header = ((EnsembleOfClassifierChainsDT) model).getDecisionTemplate().getHeader();
+        } else if (model instanceof MLDT) {
+            header = ((MLDT) model).getHeader();
+        } else {
+            throw new IllegalArgumentException("Only EnsembleOfClassifierChainsDT and MLDT models can be served");
+        }
+        if (header == null) {
+            throw new IllegalArgumentException("The model has not been trained.");
+        }
+        this.model = model;
+        this.numAttributes = header.numAttributes();
+        this.numLabels = model instanceof MLDT ? ((MLDT) model).getLabelIndices().length
+                : ((EnsembleOfClassifierChainsDT) model).getDecisionTemplate().getLabelIndices().length;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * Sets how long a request may wait to be scored before it is answered
+     * 504. Takes effect for the requests received afterwards.
+     *
+     * @param requestTimeoutMillis the timeout, 60000 by default
+     */
+    public void setRequestTimeout(long requestTimeoutMillis) {
+        this.requestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    /**
+     * Starts listening, and the scoring thread
+     *
+     * @param address the address to listen on, e.g. port 0 of the loopback
+     * address to pick a free port
+     * @param handlerThreads the number of requests read and answered at once;
+     * each waits for its batch to be scored
+     * @throws IOException if the address cannot be bound
+     */
+    public void start(InetSocketAddress address, int handlerThreads) throws IOException {
+        server = HttpServer.create(address, 0);
+        handlers = Executors.newFixedThreadPool(handlerThreads);
+        server.setExecutor(handlers);
+        server.createContext("/predict", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handlePredict(exchange);
+            }
+        });
+        server.createContext("/stats", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, stats());
+            }
+        });
+        running = true;
+        started = System.nanoTime();
+        scorer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                scoreBatches();
+            }
+        }, "scoring-server-batches");
+        scorer.setDaemon(true);
+        scorer.start();
+        server.start();
+    }
+
+    /**
+     * Returns the port the server listens on
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops listening, and fails the requests still queued
+     */
+    public void stop() {
+        running = false;
+        server.stop(0);
+        scorer.interrupt();
+        handlers.shutdownNow();
+        List<ScoringRequest> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        complete(pending, new IllegalStateException("The server is stopping"));
+    }
+
+    private void handlePredict(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "POST feature vectors, one per line\n");
+            return;
+        }
+        double[][] features;
+        try {
+            features = parse(exchange);
+        } catch (IllegalArgumentException ex) {
+            respond(exchange, 400, ex.getMessage() + "\n");
+            return;
+        }
+
+        ScoringRequest request = new ScoringRequest(features);
+        if (!queue.offer(request)) {
+            rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 503, "The scoring queue is full\n");
+            return;
+        }
+        accepted.incrementAndGet();
+        try {
+            if (!request.done.await(requestTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                failed.incrementAndGet();
+                respond(exchange, 504, "The request was not scored in time\n");
+                return;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "The server is stopping\n");
+            return;
+        }
+        if (request.error != null) {
+            failed.incrementAndGet();
+            respond(exchange, 500, request.error + "\n");
+            return;
+        }
+        requestLatency.record(System.nanoTime() - request.enqueued);
+
+        StringBuilder body = new StringBuilder(features.length * numLabels * 2);
+        for (boolean[] bipartition : request.bipartitions) {
+            for (int j = 0; j < numLabels; j++) {
+                body.append(j == 0 ? "" : ",").append(bipartition[j] ? '1' : '0');
+            }
+            body.append('\n');
+        }
+        respond(exchange, 200, body.toString());
+    }
+
+    private double[][] parse(HttpExchange exchange) throws IOException {
+        List<double[]> vectors = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] values = line.split(",");
+            if (values.length != numAttributes) {
+                throw new IllegalArgumentException("Line " + (vectors.size() + 1) + " has " + values.length
+                        + " values, expected " + numAttributes);
+            }
+            double[] vector = new double[numAttributes];
+            for (int a = 0; a < numAttributes; a++) {
+                String value = values[a].trim();
+                try {
+                    vector[a] = value.equals("?") ? Double.NaN : Double.parseDouble(value);
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Line " + (vectors.size() + 1) + " has an invalid value " + value);
+                }
+            }
+            vectors.add(vector);
+        }
+        if (vectors.isEmpty()) {
+            throw new IllegalArgumentException("No feature vector");
+        }
+        return vectors.toArray(new double[vectors.size()][]);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loop of the scoring thread: takes the first request of a batch, adds the
+     * requests arriving within maxWait up to maxBatchSize vectors, and scores
+     * them together
+     */
+    private void scoreBatches() {
+        List<ScoringRequest> batch = new ArrayList<>();
+        while (running) {
+            try {
+                batch.add(queue.take());
+                int size = batch.get(0).features.length;
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (size < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    ScoringRequest next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    size += next.features.length;
+                }
+                score(batch, size);
+            } catch (InterruptedException ex) {
+                complete(batch, new IllegalStateException("The server is stopping"));
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    private void score(List<ScoringRequest> batch, int size) {
+        double[][] features = new double[size][];
+        int row = 0;
+        for (ScoringRequest request : batch) {
+            System.arraycopy(request.features, 0, features, row, request.features.length);
+            row += request.features.length;
+        }
+        boolean[][] bipartitions = new boolean[size][numLabels];
+        long t = System.nanoTime();
+        try {
+            if (model instanceof EnsembleOfClassifierChainsDT) {
+                ((EnsembleOfClassifierChainsDT) model).makePredictions(features, bipartitions);
+            } else {
+                ((MLDT) model).makePredictions(features, bipartitions);
+            }
+        } catch (Exception ex) {
+            complete(batch, ex);
+            return;
+        }
+        batchLatency.record(System.nanoTime() - t);
+        batches.incrementAndGet();
+        rows.addAndGet(size);
+
+        row = 0;
+        for (ScoringRequest request : batch) {
+            request.bipartitions = new boolean[request.features.length][];
+            System.arraycopy(bipartitions, row, request.bipartitions, 0, request.features.length);
+            row += request.features.length;
+            request.done.countDown();
+        }
+    }
+
+    private static void complete(List<ScoringRequest> requests, Exception error) {
+        for (ScoringRequest request : requests) {
+            request.error = error;
+            request.done.countDown();
+        }
+    }
+
+    /**
+     * Returns the counters of the server: requests accepted, rejected because
+     * the queue was full and failed, vectors and batches scored, throughput
+     * since the start, and p50 / p99 of the request latency, from queueing to
+     * answer, and of the scoring time of a batch, as upper bounds within a
+     * factor of two
+     *
+     * @return the counters, one per line
+     */
+    public String stats() {
+        double seconds = Math.max(1e-9, (System.nanoTime() - started) / 1e9);
+        long scoredBatches = batches.get();
+        return "accepted: " + accepted.get() + "\n"
+                + "rejected: " + rejected.get() + "\n"
+                + "failed: " + failed.get() + "\n"
+                + "queued: " + queue.size() + "\n"
+                + "vectors: " + rows.get() + "\n"
+                + "batches: " + scoredBatches + "\n"
+                + "mean batch size: " + (scoredBatches == 0 ? 0 : (double) rows.get() / scoredBatches) + "\n"
+                + "throughput (vectors/s): " + rows.get() / seconds + "\n"
+                + "request latency p50 (ns): <= " + requestLatency.percentile(0.5) + "\n"
+                + "request latency p99 (ns): <= " + requestLatency.percentile(0.99) + "\n"
+                + "batch scoring p50 (ns): <= " + batchLatency.percentile(0.5) + "\n"
+                + "batch scoring p99 (ns): <= " + batchLatency.percentile(0.99) + "\n";
+    }
+
+    public static void main(String[] args) throws Exception {
+        String modelFilename = Utils.getOption("model", args); // e.g. -model dtecc.model, written by MLDTModelFile
+        int port = intOption("port", args, 8080);
+        int threads = intOption("threads", args, 64);
+        int queueCapacity = intOption("queue", args, 1024);
+        int maxBatchSize = intOption("batch", args, 256);
+        int maxWaitMillis = intOption("wait", args, 2);
+        int timeoutMillis = intOption("timeout", args, 60000);
+
+        MultiLabelLearner model = MLDTModelFile.read(new File(modelFilename));
+        final ScoringServer server = new ScoringServer(model, queueCapacity, maxBatchSize, maxWaitMillis);
+        server.setRequestTimeout(timeoutMillis);
+        server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), threads);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop();
+                System.err.print(server.stats());
+            }
+        });
+        System.err.println("Scoring " + modelFilename + " on http://127.0.0.1:" + server.getPort() + "/predict");
+    }
+
+    private static int intOption(String flag, String[] args, int defaultValue) throws Exception {
+        String value = Utils.getOption(flag, args);
+        return value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+}
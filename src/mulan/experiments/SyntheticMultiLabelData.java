@@ -0,0 +1,75 @@
+package mulan.experiments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import mulan.data.LabelNodeImpl;
+import mulan.data.LabelsMetaDataImpl;
+import mulan.data.MultiLabelInstances;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+/**
+ * Generates multi-label datasets locally, for tests and benchmarks that should not
+ * depend on downloaded data. The features are standard normal, and label j is
+ * relevant when a random linear function of the features plus noise is
+ * positive, so the labels are learnable and correlated through the features.
+ * The labels are the last numLabels attributes, with values {0,1}.
+ */
+public class SyntheticMultiLabelData {
+
+    /**
+     * Creates a dataset
+     *
+     * @param numInstances the number of rows
+     * @param numFeatures the number of numeric features
+     * @param numLabels the number of labels
+     * @param seed the seed of the generator
+     * @return the dataset
+     * @throws Exception if the dataset could not be created
+     */
+    public static MultiLabelInstances generate(int numInstances, int numFeatures, int numLabels, long seed) throws Exception {
+        Random random = new Random(seed);
+
+        ArrayList<Attribute> attributes = new ArrayList<>(numFeatures + numLabels);
+        for (int f = 0; f < numFeatures; f++) {
+            attributes.add(new Attribute("f" + f));
+        }
+        List<String> binary = Arrays.asList("0", "1");
+        LabelsMetaDataImpl labelsMetaData = new LabelsMetaDataImpl();
+        for (int j = 0; j < numLabels; j++) {
+            attributes.add(new Attribute("l" + j, binary));
+            labelsMetaData.addRootNode(new LabelNodeImpl("l" + j));
+        }
+
+        double[][] weights = new double[numLabels][numFeatures];
+        double[] bias = new double[numLabels];
+        for (int j = 0; j < numLabels; j++) {
+            for (int f = 0; f < numFeatures; f++) {
+                weights[j][f] = random.nextGaussian();
+            }
+            // a negative bias keeps most labels sparse, as in real data
+            bias[j] = -random.nextDouble() * Math.sqrt(numFeatures);
+        }
+
+        Instances data = new Instances("synthetic-" + numInstances + "x" + numFeatures + "x" + numLabels, attributes, numInstances);
+        for (int i = 0; i < numInstances; i++) {
+            double[] values = new double[numFeatures + numLabels];
+            for (int f = 0; f < numFeatures; f++) {
+                values[f] = random.nextGaussian();
+            }
+            for (int j = 0; j < numLabels; j++) {
+                double score = bias[j] + random.nextGaussian();
+                for (int f = 0; f < numFeatures; f++) {
+                    score += weights[j][f] * values[f];
+                }
+                values[numFeatures + j] = score > 0 ? 1 : 0;
+            }
+            data.add(new DenseInstance(1.0, values));
+        }
+
+        return new MultiLabelInstances(data, labelsMetaData);
+    }
+}
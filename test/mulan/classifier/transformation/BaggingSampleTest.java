@@ -0,0 +1,148 @@
+package mulan.classifier.transformation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import mulan.data.MultiLabelInstances;
+import mulan.experiments.SyntheticMultiLabelData;
+import org.junit.Test;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the rows of a view belong to the view, while the data set they
+ * are drawn from is left as it was.
+ */
+public class BaggingSampleTest {
+
+    private static final int ROWS = 60;
+    private static final int LABELS = 3;
+    private static final int CHAINS = 3;
+
+    @Test
+    public void rowsBelongToTheView() throws Exception {
+        Instances dataSet = SyntheticMultiLabelData.generate(50, 4, 3, 1).getDataSet();
+        dataSet.instance(0).setWeight(2);
+        int[] rows = BaggingSample.bootstrap(BaggingSample.shuffle(dataSet.numInstances(), new Random(1)),
+                dataSet, dataSet.numInstances(), new Random(1));
+        Instances view = BaggingSample.view(dataSet, rows, true);
+
+        // the class index is only set on the view, as ClassifierChain does
+        int classIndex = dataSet.numAttributes() - 1;
+        view.setClassIndex(classIndex);
+        assertTrue(BaggingSample.ownsRows(view));
+        assertEquals(-1, dataSet.classIndex());
+        for (int r = 0; r < rows.length; r++) {
+            Instance instance = view.instance(r);
+            assertSame(view, instance.dataset());
+            assertEquals(dataSet.instance(rows[r]).value(classIndex), instance.classValue(), 0);
+            assertEquals(1, instance.weight(), 0);
+        }
+        assertEquals(2, dataSet.instance(0).weight(), 0);
+
+        // setting a value of the view leaves the data set unchanged
+        double value = dataSet.instance(rows[0]).value(0);
+        view.instance(0).setValue(0, value + 1);
+        assertEquals(value, dataSet.instance(rows[0]).value(0), 0);
+    }
+
+    @Test
+    public void subsampleKeepsWeights() throws Exception {
+        Instances dataSet = SyntheticMultiLabelData.generate(50, 4, 3, 1).getDataSet();
+        dataSet.instance(0).setWeight(2);
+        int[] rows = BaggingSample.subsample(BaggingSample.shuffle(dataSet.numInstances(), new Random(1)), 100);
+        Instances view = BaggingSample.view(dataSet, rows, false);
+
+        assertTrue(BaggingSample.ownsRows(view));
+        for (int r = 0; r < rows.length; r++) {
+            assertEquals(dataSet.instance(rows[r]).weight(), view.instance(r).weight(), 0);
+        }
+    }
+
+    @Test
+    public void chainsOnlySeeRowsOfTheirSample() throws Exception {
+        // buildChain also asserts BaggingSample.ownsRows, and tests run with -ea
+        MultiLabelInstances data = SyntheticMultiLabelData.generate(ROWS, 4, LABELS, 1);
+        Instances dataSet = data.getDataSet();
+        // the first feature is a Gaussian draw, which tells the rows apart
+        Map<Double, Integer> rowOf = new HashMap<>();
+        for (int r = 0; r < ROWS; r++) {
+            rowOf.put(dataSet.instance(r).value(0), r);
+        }
+        assertEquals(ROWS, rowOf.size());
+
+        for (boolean withReplacement : new boolean[]{true, false}) {
+            RecordingNaiveBayes.TRAINING_SETS.clear();
+            EnsembleOfClassifierChainsDT learner = new EnsembleOfClassifierChainsDT(new RecordingNaiveBayes(), CHAINS,
+                    true, withReplacement, MLDT.PredictionType.INDIVIDUAL);
+            learner.build(data);
+
+            // the shared data set keeps its rows and has no class index set
+            assertTrue(BaggingSample.ownsRows(dataSet));
+            assertEquals(-1, dataSet.classIndex());
+
+            // each chain trains one classifier per label, all on its sample
+            List<Instances> trainingSets = RecordingNaiveBayes.TRAINING_SETS;
+            assertEquals(CHAINS * LABELS, trainingSets.size());
+            Set<List<Integer>> samples = new HashSet<>();
+            for (int c = 0; c < CHAINS; c++) {
+                List<Integer> sample = sampledRows(trainingSets.get(c * LABELS), rowOf);
+                for (int j = 1; j < LABELS; j++) {
+                    assertEquals(sample, sampledRows(trainingSets.get(c * LABELS + j), rowOf));
+                }
+                if (withReplacement) {
+                    assertEquals(ROWS, sample.size());
+                    assertTrue(new HashSet<>(sample).size() < ROWS);
+                } else {
+                    assertEquals(Math.round(ROWS * 0.67), sample.size());
+                    assertEquals(sample.size(), new HashSet<>(sample).size());
+                }
+                samples.add(sample);
+            }
+            // the chains draw their samples from different seeds
+            assertEquals(CHAINS, samples.size());
+        }
+    }
+
+    /**
+     * Returns the rows of the data set that a training set holds, sorted,
+     * checking that each of them has the weight of a sampled row
+     */
+    private static List<Integer> sampledRows(Instances trainingSet, Map<Double, Integer> rowOf) {
+        List<Integer> rows = new ArrayList<>();
+        for (int r = 0; r < trainingSet.numInstances(); r++) {
+            Integer row = rowOf.get(trainingSet.instance(r).value(0));
+            assertNotNull("A training row is not a row of the data set", row);
+            assertEquals(1, trainingSet.instance(r).weight(), 0);
+            rows.add(row);
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /**
+     * Naive Bayes keeping a copy of the data each of its copies is trained on
+     */
+    private static class RecordingNaiveBayes extends NaiveBayes {
+
+        private static final long serialVersionUID = 1L;
+        static final List<Instances> TRAINING_SETS = Collections.synchronizedList(new ArrayList<Instances>());
+
+        @Override
+        public void buildClassifier(Instances instances) throws Exception {
+            TRAINING_SETS.add(new Instances(instances));
+            super.buildClassifier(instances);
+        }
+    }
+}
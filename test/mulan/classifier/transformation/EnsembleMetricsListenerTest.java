@@ -0,0 +1,68 @@
+package mulan.classifier.transformation;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import mulan.classifier.MultiLabelLearner;
+import mulan.data.MultiLabelInstances;
+import mulan.experiments.SyntheticMultiLabelData;
+import org.junit.Test;
+import weka.classifiers.bayes.NaiveBayes;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that the allocation reported for building templates on an executor
+ * includes that of the threads of the executor.
+ */
+public class EnsembleMetricsListenerTest {
+
+    private static final int ROWS = 400;
+    private static final int FEATURES = 10;
+    private static final int LABELS = 10;
+    private static final int CHAINS = 8;
+
+    @Test
+    public void templateAllocationIncludesExecutorThreads() throws Exception {
+        assumeTrue(EnsembleMetricsListener.allocatedBytes() >= 0);
+        MultiLabelInstances data = SyntheticMultiLabelData.generate(ROWS, FEATURES, LABELS, 1);
+        MultiLabelLearner[] chains = new MultiLabelLearner[CHAINS];
+        for (int c = 0; c < CHAINS; c++) {
+            int[] chain = new int[LABELS];
+            for (int j = 0; j < LABELS; j++) {
+                chain[j] = (j + c) % LABELS;
+            }
+            chains[c] = new ClassifierChain(new NaiveBayes(), chain);
+            chains[c].build(data);
+        }
+
+        long sequential = templateBytes(chains, data, null);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            long parallel = templateBytes(chains, data, executor);
+            // nearly all the allocation is the evaluation of the classifiers,
+            // which runs on the executor
+            assertTrue(parallel + " bytes with an executor, " + sequential + " without",
+                    parallel > sequential / 2);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static long templateBytes(MultiLabelLearner[] chains, MultiLabelInstances data, ExecutorService executor)
+            throws Exception {
+        final AtomicLong bytes = new AtomicLong();
+        MLDT mldt = new MLDT(chains, 0.5);
+        mldt.setExecutor(executor);
+        mldt.setParallelCutoff(1);
+        mldt.setMetricsListener(new EnsembleMetricsListener() {
+            @Override
+            public void templatesBuilt(int numChains, int numLabels, int numInstances, long nanos, long allocatedBytes) {
+                bytes.set(allocatedBytes);
+            }
+        });
+        mldt.build(data);
+        return bytes.get();
+    }
+}
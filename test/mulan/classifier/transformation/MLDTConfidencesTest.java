@@ -0,0 +1,73 @@
+package mulan.classifier.transformation;
+
+import mulan.classifier.MultiLabelLearner;
+import mulan.data.MultiLabelInstances;
+import mulan.experiments.SyntheticMultiLabelData;
+import org.junit.Test;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that a label never relevant in training, which has no templates, is
+ * reported with a confidence of 0 rather than NaN.
+ */
+public class MLDTConfidencesTest {
+
+    private static final int ROWS = 150;
+    private static final int FEATURES = 8;
+    private static final int LABELS = 5;
+    private static final int CHAINS = 3;
+
+    @Test
+    public void unseenLabelHasZeroConfidence() throws Exception {
+        assertZeroConfidence(false);
+    }
+
+    @Test
+    public void unseenLabelHasZeroConfidenceWithSparseLabels() throws Exception {
+        assertZeroConfidence(true);
+    }
+
+    private static void assertZeroConfidence(boolean sparseLabels) throws Exception {
+        MultiLabelInstances data = SyntheticMultiLabelData.generate(ROWS, FEATURES, LABELS, 1);
+        // the last label is never relevant
+        int unseen = data.getLabelIndices()[LABELS - 1];
+        Instances dataSet = data.getDataSet();
+        for (int r = 0; r < dataSet.numInstances(); r++) {
+            dataSet.instance(r).setValue(unseen, "0");
+        }
+
+        MultiLabelLearner[] chains = new MultiLabelLearner[CHAINS];
+        for (int c = 0; c < CHAINS; c++) {
+            int[] chain = new int[LABELS];
+            for (int j = 0; j < LABELS; j++) {
+                chain[j] = (j + c) % LABELS;
+            }
+            chains[c] = new ClassifierChain(new NaiveBayes(), chain);
+            chains[c].build(data);
+        }
+        MLDT mldt = new MLDT(chains, 0.5);
+        mldt.setSparseLabels(sparseLabels);
+        mldt.build(data);
+
+        for (int r = 0; r < dataSet.numInstances(); r++) {
+            double[] confidences = mldt.makePrediction(dataSet.instance(r)).getConfidences();
+            for (double confidence : confidences) {
+                assertFalse(Double.isNaN(confidence));
+            }
+            assertEquals(0, confidences[LABELS - 1], 0);
+        }
+
+        double[][] templateConfidences = new double[dataSet.numInstances()][LABELS];
+        mldt.makeTemplateConfidences(mldt.computeConfidences(dataSet), dataSet.numInstances(), templateConfidences);
+        for (double[] row : templateConfidences) {
+            for (double confidence : row) {
+                assertFalse(Double.isNaN(confidence));
+            }
+            assertEquals(0, row[LABELS - 1], 0);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package mulan.classifier.transformation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import mulan.classifier.MultiLabelLearner;
+import mulan.data.MultiLabelInstances;
+import mulan.experiments.SyntheticMultiLabelData;
+import org.junit.Test;
+import weka.classifiers.bayes.NaiveBayes;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a trained MLDT keeps only the templates, so that its serialized
+ * size does not depend on the number of training instances.
+ */
+public class MLDTFootprintTest {
+
+    private static final int ROWS = 200;
+    private static final int FEATURES = 10;
+    private static final int LABELS = 6;
+    private static final int CHAINS = 4;
+
+    @Test
+    public void serializedSizeIndependentOfTrainingSize() throws Exception {
+        assertEquals(serializedSize(ROWS, false), serializedSize(4 * ROWS, false));
+    }
+
+    @Test
+    public void serializedSizeIndependentOfTrainingSizeWithMedian() throws Exception {
+        assertEquals(serializedSize(ROWS, true), serializedSize(4 * ROWS, true));
+    }
+
+    private static int serializedSize(int rows, boolean useMedian) throws Exception {
+        MultiLabelInstances data = SyntheticMultiLabelData.generate(rows, FEATURES, LABELS, 1);
+        MultiLabelLearner[] chains = new MultiLabelLearner[CHAINS];
+        for (int c = 0; c < CHAINS; c++) {
+            int[] chain = new int[LABELS];
+            for (int j = 0; j < LABELS; j++) {
+                chain[j] = (j + c) % LABELS;
+            }
+            chains[c] = new ClassifierChain(new NaiveBayes(), chain);
+            chains[c].build(data);
+        }
+        MLDT mldt = new MLDT(chains, 0.5);
+        mldt.setUseMedian(useMedian);
+        mldt.build(data);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(mldt);
+        out.close();
+        return bytes.size();
+    }
+}
@@ -0,0 +1,80 @@
+package mulan.classifier.transformation;
+
+import java.io.File;
+import mulan.classifier.MultiLabelLearner;
+import mulan.data.MultiLabelInstances;
+import mulan.experiments.SyntheticMultiLabelData;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import weka.classifiers.bayes.NaiveBayes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that models whose templates a model file cannot map are rejected
+ * rather than written.
+ */
+public class MLDTModelFileTest {
+
+    private static final int ROWS = 100;
+    private static final int FEATURES = 5;
+    private static final int LABELS = 4;
+    private static final int CHAINS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void combinedTemplatesAreRejected() throws Exception {
+        assertRejected(build(MLDT.PredictionType.COMBINED));
+    }
+
+    @Test
+    public void quantizedTemplatesAreRejected() throws Exception {
+        MLDT mldt = build(MLDT.PredictionType.INDIVIDUAL);
+        mldt.setPrecision(MLDT.Precision.QUANTIZED);
+        assertRejected(mldt);
+    }
+
+    @Test
+    public void individualTemplatesAreMapped() throws Exception {
+        MLDT mldt = build(MLDT.PredictionType.INDIVIDUAL);
+        File file = folder.newFile();
+        MLDTModelFile.write(mldt, file, false);
+        MLDT loaded = (MLDT) MLDTModelFile.read(file);
+        double[] expected = mldt.templateValues();
+        double[] actual = loaded.templateValues();
+        assertEquals(expected.length, actual.length);
+        for (int k = 0; k < expected.length; k++) {
+            assertEquals(expected[k], actual[k], 0);
+        }
+    }
+
+    private void assertRejected(MLDT mldt) throws Exception {
+        File file = new File(folder.getRoot(), "model.mldt");
+        try {
+            MLDTModelFile.write(mldt, file, false);
+            throw new AssertionError("The model was written");
+        } catch (UnsupportedOperationException e) {
+            assertFalse(file.exists());
+        }
+    }
+
+    private static MLDT build(MLDT.PredictionType type) throws Exception {
+        MultiLabelInstances data = SyntheticMultiLabelData.generate(ROWS, FEATURES, LABELS, 1);
+        MultiLabelLearner[] chains = new MultiLabelLearner[CHAINS];
+        for (int c = 0; c < CHAINS; c++) {
+            int[] chain = new int[LABELS];
+            for (int j = 0; j < LABELS; j++) {
+                chain[j] = (j + c) % LABELS;
+            }
+            chains[c] = new ClassifierChain(new NaiveBayes(), chain);
+            chains[c].build(data);
+        }
+        MLDT mldt = new MLDT(chains, type, 0.5);
+        mldt.build(data);
+        return mldt;
+    }
+}
@@ -0,0 +1,52 @@
+package mulan.classifier.transformation;
+
+import mulan.classifier.MultiLabelLearner;
+import mulan.data.MultiLabelInstances;
+import mulan.experiments.SyntheticMultiLabelData;
+import org.junit.Test;
+import weka.classifiers.bayes.NaiveBayes;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that trained combined templates, which are only stored in double
+ * precision, reject a reduced precision and are left as they were.
+ */
+public class MLDTPrecisionTest {
+
+    private static final int ROWS = 100;
+    private static final int FEATURES = 5;
+    private static final int LABELS = 4;
+    private static final int CHAINS = 3;
+
+    @Test
+    public void combinedTemplatesRejectReducedPrecision() throws Exception {
+        MultiLabelInstances data = SyntheticMultiLabelData.generate(ROWS, FEATURES, LABELS, 1);
+        MultiLabelLearner[] chains = new MultiLabelLearner[CHAINS];
+        for (int c = 0; c < CHAINS; c++) {
+            int[] chain = new int[LABELS];
+            for (int j = 0; j < LABELS; j++) {
+                chain[j] = (j + c) % LABELS;
+            }
+            chains[c] = new ClassifierChain(new NaiveBayes(), chain);
+            chains[c].build(data);
+        }
+        MLDT mldt = new MLDT(chains, MLDT.PredictionType.COMBINED, 0.5);
+        mldt.build(data);
+        double[] before = mldt.makePrediction(data.getDataSet().instance(0)).getConfidences();
+
+        for (MLDT.Precision precision : new MLDT.Precision[]{MLDT.Precision.FLOAT, MLDT.Precision.QUANTIZED}) {
+            try {
+                mldt.setPrecision(precision);
+                throw new AssertionError(precision + " was accepted");
+            } catch (UnsupportedOperationException e) {
+                assertEquals(MLDT.Precision.DOUBLE, mldt.getPrecision());
+            }
+        }
+        mldt.setPrecision(MLDT.Precision.DOUBLE);
+        double[] after = mldt.makePrediction(data.getDataSet().instance(0)).getConfidences();
+        for (int j = 0; j < LABELS; j++) {
+            assertEquals(before[j], after[j], 0);
+        }
+    }
+}
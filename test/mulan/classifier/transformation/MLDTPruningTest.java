@@ -0,0 +1,91 @@
+package mulan.classifier.transformation;
+
+import mulan.classifier.MultiLabelLearner;
+import mulan.data.LabelMatrix;
+import mulan.data.MultiLabelInstances;
+import mulan.experiments.SyntheticMultiLabelData;
+import org.junit.Test;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the classifiers chosen by selectClassifiers keep the F-measure
+ * of the pruned model, as predicted, within the tolerance. The tolerances put
+ * the target on the F-measure of each classifier alone, in double and in the
+ * model's precision, where scoring the candidates otherwise than prediction
+ * does stops the selection too early.
+ */
+public class MLDTPruningTest {
+
+    private static final int ROWS = 300;
+    private static final int FEATURES = 2;
+    private static final int LABELS = 8;
+    private static final int CHAINS = 12;
+    // a seed where a classifier alone scores higher in double precision than
+    // quantized, and is the best one in double precision
+    private static final long SEED = 17;
+
+    @Test
+    public void prunedModelWithinToleranceInDoublePrecision() throws Exception {
+        assertWithinTolerance(MLDT.Precision.DOUBLE);
+    }
+
+    @Test
+    public void prunedModelWithinToleranceQuantized() throws Exception {
+        assertWithinTolerance(MLDT.Precision.QUANTIZED);
+    }
+
+    private static void assertWithinTolerance(MLDT.Precision precision) throws Exception {
+        MultiLabelInstances data = SyntheticMultiLabelData.generate(ROWS, FEATURES, LABELS, SEED);
+        MultiLabelInstances train = new MultiLabelInstances(data.getDataSet().trainCV(2, 0), data.getLabelsMetaData());
+        Instances validation = data.getDataSet().testCV(2, 0);
+        LabelMatrix labels = LabelMatrix.decode(validation, data.getLabelIndices());
+        boolean[][] trueLabels = new boolean[validation.numInstances()][];
+        for (int r = 0; r < trueLabels.length; r++) {
+            trueLabels[r] = labels.row(r, new boolean[LABELS]);
+        }
+
+        MultiLabelLearner[] chains = new MultiLabelLearner[CHAINS];
+        for (int c = 0; c < CHAINS; c++) {
+            int[] chain = new int[LABELS];
+            for (int j = 0; j < LABELS; j++) {
+                chain[j] = (c % 2 == 0 ? j + c : LABELS - 1 - j + c) % LABELS;
+            }
+            chains[c] = new ClassifierChain(new NaiveBayes(), chain);
+            chains[c].build(train);
+        }
+        MLDT model = build(chains, train, precision);
+        double full = model.meanFMeasure(model.computeConfidences(validation), trueLabels.length, trueLabels);
+
+        double[] singles = new double[2 * CHAINS];
+        for (int c = 0; c < CHAINS; c++) {
+            MLDT single = build(chains, train, MLDT.Precision.DOUBLE);
+            single.retainClassifiers(new int[]{c});
+            singles[2 * c] = single.meanFMeasure(single.computeConfidences(validation), trueLabels.length, trueLabels);
+            single.setPrecision(precision);
+            singles[2 * c + 1] = single.meanFMeasure(single.computeConfidences(validation), trueLabels.length, trueLabels);
+        }
+        for (double single : singles) {
+            double tolerance = full - single;
+            if (tolerance < 0) {
+                continue;
+            }
+            MLDT pruned = build(chains, train, precision);
+            pruned.retainClassifiers(pruned.selectClassifiers(pruned.computeConfidences(validation), trueLabels.length,
+                    trueLabels, tolerance));
+            double f = pruned.meanFMeasure(pruned.computeConfidences(validation), trueLabels.length, trueLabels);
+            assertTrue(precision + ", tolerance " + tolerance + ": " + f + " < " + full + " - tolerance",
+                    f >= full - tolerance);
+        }
+    }
+
+    private static MLDT build(MultiLabelLearner[] chains, MultiLabelInstances train, MLDT.Precision precision)
+            throws Exception {
+        MLDT mldt = new MLDT(chains, 0.5);
+        mldt.build(train);
+        mldt.setPrecision(precision);
+        return mldt;
+    }
+}
@@ -0,0 +1,92 @@
+package mulan.classifier.transformation;
+
+import java.util.Arrays;
+import java.util.Random;
+import mulan.classifier.MultiLabelLearner;
+import mulan.data.MultiLabelInstances;
+import mulan.experiments.SyntheticMultiLabelData;
+import org.junit.Test;
+import weka.classifiers.bayes.NaiveBayes;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the medians of MedianSketch are within the error bound of the
+ * exact medians once the values are folded into a histogram.
+ */
+public class MedianSketchTest {
+
+    private static final double[] ERROR_BOUNDS = {0.1, 0.05, 0.01, 0.003};
+
+    @Test
+    public void evenCountWithEmptyBinsBetweenTheMiddleValues() {
+        double[] values = new double[2000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i % 2 == 0 ? 0.1 : 0.9;
+        }
+        for (double errorBound : ERROR_BOUNDS) {
+            assertEquals(0.5, sketch(values, errorBound).median(), errorBound);
+        }
+    }
+
+    @Test
+    public void randomValuesWithinErrorBound() {
+        Random random = new Random(1);
+        for (int count = 1500; count <= 1510; count++) {
+            double[] values = new double[count];
+            for (int i = 0; i < count; i++) {
+                // skewed towards 0 and 1, as the confidences of a classifier
+                double u = random.nextDouble();
+                values[i] = random.nextBoolean() ? u * u * u : 1 - u * u * u;
+            }
+            double exact = exactMedian(values);
+            for (double errorBound : ERROR_BOUNDS) {
+                assertEquals(exact, sketch(values, errorBound).median(), errorBound);
+            }
+        }
+    }
+
+    @Test
+    public void medianTemplatesWithinErrorBoundOnSyntheticFold() throws Exception {
+        // over 1300 positive and negative rows per label in the fold, above
+        // the EXACT_MEDIAN_LIMIT of 1024
+        MultiLabelInstances data = SyntheticMultiLabelData.generate(7500, 10, 3, 1);
+        MultiLabelInstances train = new MultiLabelInstances(data.getDataSet().trainCV(3, 0), data.getLabelsMetaData());
+        MultiLabelLearner[] chains = new MultiLabelLearner[3];
+        for (int c = 0; c < chains.length; c++) {
+            chains[c] = new ClassifierChain(new NaiveBayes(), new int[]{c, (c + 1) % 3, (c + 2) % 3});
+            chains[c].build(train);
+        }
+        double[] exact = medianTemplates(chains, train, 0);
+        for (double errorBound : ERROR_BOUNDS) {
+            double[] sketched = medianTemplates(chains, train, errorBound);
+            for (int k = 0; k < exact.length; k++) {
+                assertEquals(exact[k], sketched[k], errorBound);
+            }
+        }
+    }
+
+    private static MLDT.MedianSketch sketch(double[] values, double errorBound) {
+        MLDT.MedianSketch sketch = new MLDT.MedianSketch(errorBound);
+        for (double value : values) {
+            sketch.add(value);
+        }
+        return sketch;
+    }
+
+    private static double exactMedian(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int n = sorted.length;
+        return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+    }
+
+    private static double[] medianTemplates(MultiLabelLearner[] chains, MultiLabelInstances train, double errorBound)
+            throws Exception {
+        MLDT mldt = new MLDT(chains, 0.5);
+        mldt.setUseMedian(true);
+        mldt.setMedianErrorBound(errorBound);
+        mldt.build(train);
+        return mldt.templateValues();
+    }
+}
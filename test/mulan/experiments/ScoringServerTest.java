@@ -0,0 +1,295 @@
+package mulan.experiments;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import mulan.classifier.MultiLabelLearner;
+import mulan.classifier.transformation.ClassifierChain;
+import mulan.classifier.transformation.MLDT;
+import mulan.data.MultiLabelInstances;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a ScoringServer on a free port of the loopback address, with a model
+ * that only scores once released, so that requests can be queued at will.
+ */
+public class ScoringServerTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int ROWS = 100;
+    private static final int FEATURES = 5;
+    private static final int LABELS = 4;
+    private static final int CHAINS = 3;
+
+    private Instances dataSet;
+    private GatedMLDT model;
+    private ScoringServer server;
+    private ExecutorService clients;
+
+    /**
+     * An MLDT whose batch predictions wait for the test to release them
+     */
+    private static class GatedMLDT extends MLDT {
+
+        private static final long serialVersionUID = 1L;
+        private transient CountDownLatch scoring = new CountDownLatch(1);
+        private transient CountDownLatch release = new CountDownLatch(1);
+
+        GatedMLDT(MultiLabelLearner[] classifiers) {
+            super(classifiers, 0.5);
+        }
+
+        @Override
+        public void makePredictions(double[][] features, boolean[][] bipartitions) throws Exception {
+            scoring.countDown();
+            release.await();
+            super.makePredictions(features, bipartitions);
+        }
+    }
+
+    /**
+     * A response of the server
+     */
+    private static class Response {
+
+        private final int status;
+        private final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MultiLabelInstances data = SyntheticMultiLabelData.generate(ROWS, FEATURES, LABELS, 1);
+        dataSet = data.getDataSet();
+        MultiLabelLearner[] chains = new MultiLabelLearner[CHAINS];
+        for (int c = 0; c < CHAINS; c++) {
+            int[] chain = new int[LABELS];
+            for (int j = 0; j < LABELS; j++) {
+                chain[j] = (j + c) % LABELS;
+            }
+            chains[c] = new ClassifierChain(new NaiveBayes(), chain);
+            chains[c].build(data);
+        }
+        model = new GatedMLDT(chains);
+        model.build(data);
+        clients = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        model.release.countDown();
+        if (server != null) {
+            server.stop();
+        }
+        clients.shutdownNow();
+    }
+
+    private void start(int queueCapacity, int maxBatchSize, long maxWaitMillis) throws IOException {
+        server = new ScoringServer(model, queueCapacity, maxBatchSize, maxWaitMillis);
+        server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 32);
+    }
+
+    @Test
+    public void queuedRequestsAreScoredInOneBatch() throws Exception {
+        start(16, 256, 50);
+        // the first request is scored alone, and holds the scoring thread
+        Future<Response> first = post(0, 1);
+        model.scoring.await();
+        List<Future<Response>> queued = new ArrayList<>();
+        for (int k = 1; k <= 8; k++) {
+            queued.add(post(2 * k, 2));
+        }
+        awaitStat("queued", 8);
+        model.release.countDown();
+
+        assertPredictions(first.get(), 0, 1);
+        for (int k = 1; k <= 8; k++) {
+            assertPredictions(queued.get(k - 1).get(), 2 * k, 2);
+        }
+        String stats = get("/stats").body;
+        assertEquals(9, stat(stats, "accepted"), 0);
+        assertEquals(0, stat(stats, "rejected"), 0);
+        assertEquals(0, stat(stats, "failed"), 0);
+        assertEquals(17, stat(stats, "vectors"), 0);
+        assertEquals(2, stat(stats, "batches"), 0);
+        assertEquals(8.5, stat(stats, "mean batch size"), 1e-9);
+    }
+
+    @Test
+    public void batchesAreLimitedToMaxBatchSize() throws Exception {
+        start(16, 4, 50);
+        Future<Response> first = post(0, 1);
+        model.scoring.await();
+        List<Future<Response>> queued = new ArrayList<>();
+        for (int k = 1; k <= 6; k++) {
+            queued.add(post(2 * k, 2));
+        }
+        awaitStat("queued", 6);
+        model.release.countDown();
+
+        assertPredictions(first.get(), 0, 1);
+        for (int k = 1; k <= 6; k++) {
+            assertPredictions(queued.get(k - 1).get(), 2 * k, 2);
+        }
+        // 1 vector, then 2 requests of 2 vectors per batch
+        String stats = get("/stats").body;
+        assertEquals(13, stat(stats, "vectors"), 0);
+        assertEquals(4, stat(stats, "batches"), 0);
+    }
+
+    @Test
+    public void fullQueueIsRejected() throws Exception {
+        start(2, 256, 0);
+        Future<Response> first = post(0, 1);
+        model.scoring.await();
+        Future<Response> second = post(1, 1);
+        Future<Response> third = post(2, 1);
+        awaitStat("queued", 2);
+
+        Response rejected = post(3, 1).get();
+        assertEquals(503, rejected.status);
+        String stats = get("/stats").body;
+        assertEquals(3, stat(stats, "accepted"), 0);
+        assertEquals(1, stat(stats, "rejected"), 0);
+
+        model.release.countDown();
+        assertPredictions(first.get(), 0, 1);
+        assertPredictions(second.get(), 1, 1);
+        assertPredictions(third.get(), 2, 1);
+    }
+
+    @Test
+    public void requestNotScoredInTimeTimesOut() throws Exception {
+        start(16, 256, 0);
+        server.setRequestTimeout(200);
+        Future<Response> first = post(0, 1);
+        model.scoring.await();
+
+        assertEquals(504, first.get().status);
+        assertEquals(504, post(1, 1).get().status);
+        String stats = get("/stats").body;
+        assertEquals(2, stat(stats, "accepted"), 0);
+        assertEquals(2, stat(stats, "failed"), 0);
+        assertEquals(0, stat(stats, "vectors"), 0);
+    }
+
+    /**
+     * Posts rows from..from + count - 1 of the data set, from a client thread
+     */
+    private Future<Response> post(int from, int count) {
+        final StringBuilder body = new StringBuilder();
+        for (int r = from; r < from + count; r++) {
+            double[] values = dataSet.instance(r).toDoubleArray();
+            for (int a = 0; a < values.length; a++) {
+                body.append(a == 0 ? "" : ",").append(values[a]);
+            }
+            body.append('\n');
+        }
+        return clients.submit(new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                HttpURLConnection connection = connect("/predict");
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body.toString().getBytes(UTF_8));
+                } finally {
+                    out.close();
+                }
+                return read(connection);
+            }
+        });
+    }
+
+    private Response get(String path) throws IOException {
+        return read(connect(path));
+    }
+
+    private HttpURLConnection connect(String path) throws IOException {
+        URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), server.getPort(), path);
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    private static Response read(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return new Response(status, new String(bytes.toByteArray(), UTF_8));
+    }
+
+    /**
+     * Checks that a response holds the bipartitions of rows from..from +
+     * count - 1, as the model predicts them
+     */
+    private void assertPredictions(Response response, int from, int count) throws Exception {
+        assertEquals(200, response.status);
+        double[][] features = new double[count][];
+        for (int r = 0; r < count; r++) {
+            features[r] = dataSet.instance(from + r).toDoubleArray();
+        }
+        boolean[][] bipartitions = new boolean[count][LABELS];
+        model.makePredictions(features, bipartitions);
+        StringBuilder expected = new StringBuilder();
+        for (boolean[] bipartition : bipartitions) {
+            for (int j = 0; j < LABELS; j++) {
+                expected.append(j == 0 ? "" : ",").append(bipartition[j] ? '1' : '0');
+            }
+            expected.append('\n');
+        }
+        assertEquals(expected.toString(), response.body);
+    }
+
+    /**
+     * Waits until a counter of the server reaches a value
+     */
+    private void awaitStat(String name, double value) throws Exception {
+        long deadline = System.nanoTime() + 10000000000L;
+        while (stat(server.stats(), name) != value) {
+            assertTrue(name + " did not reach " + value, System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static double stat(String stats, String name) {
+        for (String line : stats.split("\n")) {
+            if (line.startsWith(name + ": ")) {
+                return Double.parseDouble(line.substring(name.length() + 2));
+            }
+        }
+        throw new IllegalArgumentException("No counter " + name);
+    }
+}